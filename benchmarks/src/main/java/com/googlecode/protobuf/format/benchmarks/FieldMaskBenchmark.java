@@ -0,0 +1,67 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.FieldMask;
+import com.googlecode.protobuf.format.FormatFactory;
+import com.googlecode.protobuf.format.ProtobufFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints the {@link Messages#MEDIUM} message in full and with a {@link FieldMask} of a few of
+ * its fields, as an API response to a client that asked for only those.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldMaskBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @State(Scope.Thread)
+    public static class PrintState {
+        @Param({"JSON", "XML_JAVAX", "JSON_JACKSON"})
+        FormatFactory.Formatter formatter;
+
+        final FieldMask mask = FieldMask.fromString("optional_int32,optional_string,optional_nested_message.bb");
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+        ProtobufFormatter format;
+        Message message;
+
+        @Setup
+        public void setUp() {
+            format = new FormatFactory().createFormatter(formatter);
+            message = Messages.MEDIUM.create();
+        }
+    }
+
+    @Benchmark
+    public int printAll(PrintState state) throws IOException {
+        state.output.reset();
+        state.format.print(state.message, state.output, UTF_8);
+        return state.output.size();
+    }
+
+    @Benchmark
+    public int printMasked(PrintState state) throws IOException {
+        state.output.reset();
+        state.format.print(state.message, state.mask, state.output, UTF_8);
+        return state.output.size();
+    }
+}
@@ -0,0 +1,125 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.FormatFactory;
+import com.googlecode.protobuf.format.ProtobufFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints and merges every {@link Messages} shape with every {@link FormatFactory.Formatter}
+ * through the {@code OutputStream} / {@code InputStream} API with UTF-8.
+ * <p>
+ * {@link FormatBenchmarkRunner} runs this with throughput, ns/op and the GC profiler's
+ * {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @State(Scope.Thread)
+    public static class PrintState {
+        @Param
+        FormatFactory.Formatter formatter;
+
+        @Param
+        Messages shape;
+
+        ProtobufFormatter format;
+        Message message;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(256 * 1024);
+
+        @Setup
+        public void setUp() {
+            format = new FormatFactory().createFormatter(formatter);
+            message = shape.create();
+            // Like a long-lived formatter, estimateSize has seen messages of the type.
+            for (int i = 0; i < 20; i++) {
+                format.printToBytes(message);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MergeState {
+        // HtmlFormat can only print.
+        @Param({"COUCHDB", "JAVA_PROPS", "JSON", "XML", "SMILE", "JSON_JACKSON", "XML_JAVAX"})
+        FormatFactory.Formatter formatter;
+
+        @Param
+        Messages shape;
+
+        ProtobufFormatter format;
+        Message prototype;
+        byte[] input;
+
+        @Setup
+        public void setUp() throws IOException {
+            format = new FormatFactory().createFormatter(formatter);
+            Message message = shape.create();
+            prototype = message.getDefaultInstanceForType();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            format.print(message, output, UTF_8);
+            input = output.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public int print(PrintState state) throws IOException {
+        state.output.reset();
+        state.format.print(state.message, state.output, UTF_8);
+        return state.output.size();
+    }
+
+    /** What a caller without a size estimate does: the stream grows from its default size. */
+    @Benchmark
+    public int printToNewStream(PrintState state) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        state.format.print(state.message, output, UTF_8);
+        return output.size();
+    }
+
+    @Benchmark
+    public int printToEstimatedStream(PrintState state) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(state.format.estimateSize(state.message));
+        state.format.print(state.message, output, UTF_8);
+        return output.size();
+    }
+
+    @Benchmark
+    public byte[] printToBytes(PrintState state) {
+        return state.format.printToBytes(state.message);
+    }
+
+    @Benchmark
+    public String printToString(PrintState state) {
+        return state.format.printToString(state.message);
+    }
+
+    @Benchmark
+    public Message merge(MergeState state) throws IOException {
+        Message.Builder builder = state.prototype.newBuilderForType();
+        state.format.merge(new ByteArrayInputStream(state.input), UTF_8, builder);
+        return builder.build();
+    }
+}
@@ -0,0 +1,39 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link FormatBenchmark} (or whatever the usual JMH command line selects) twice: once for
+ * throughput in ops/s and once for the average time in ns/op, both with the GC profiler so
+ * {@code gc.alloc.rate.norm} is reported. Other JMH options are passed through, e.g.
+ * {@code -p formatter=JSON,SMILE -p shape=MEDIUM}.
+ */
+public class FormatBenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        String include = options.getIncludes().isEmpty()
+                ? FormatBenchmark.class.getSimpleName() : null;
+
+        run(options, include, Mode.Throughput, TimeUnit.SECONDS);
+        run(options, include, Mode.AverageTime, TimeUnit.NANOSECONDS);
+    }
+
+    private static void run(CommandLineOptions options, String include, Mode mode, TimeUnit unit)
+            throws RunnerException {
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).mode(mode).timeUnit(unit).addProfiler(GCProfiler.class);
+        if (include != null) {
+            builder.include(include);
+        }
+        new Runner(builder.build()).run();
+    }
+}
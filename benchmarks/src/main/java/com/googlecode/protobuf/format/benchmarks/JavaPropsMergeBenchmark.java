@@ -0,0 +1,71 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.googlecode.protobuf.format.JavaPropsFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protobuf_unittest.UnittestMultiNestedProto.Holder;
+import protobuf_unittest.UnittestMultiNestedProto.Inner;
+import protobuf_unittest.UnittestMultiNestedProto.Outer;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges a properties file of {@code 2 * holders} lines, all properties of one sub-message
+ * ({@code one[0].data1[i].id} and {@code .data}), with {@link JavaPropsFormat}. Time per line
+ * should not grow with the size of the file. {@link #mergeProperties} merges the same properties
+ * from a {@link Properties}, with no text to tokenize.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JavaPropsMergeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Input {
+        @Param({"1000", "5000", "25000"})
+        int holders;
+
+        final JavaPropsFormat format = new JavaPropsFormat();
+        String text;
+        Properties properties;
+
+        @Setup
+        public void setUp() {
+            Inner.Builder inner = Inner.newBuilder();
+            for (int i = 0; i < holders; i++) {
+                inner.addData1(Holder.newBuilder().setId("id" + i).setData("value " + i));
+            }
+            Outer message = Outer.newBuilder().addOne(inner).build();
+            text = format.printToString(message);
+            properties = format.toProperties(message);
+        }
+    }
+
+    @Benchmark
+    public Outer merge(Input input) throws IOException {
+        Outer.Builder builder = Outer.newBuilder();
+        input.format.merge(input.text, ExtensionRegistry.getEmptyRegistry(), builder);
+        return builder.build();
+    }
+
+    @Benchmark
+    public Outer mergeProperties(Input input) throws IOException {
+        Outer.Builder builder = Outer.newBuilder();
+        input.format.merge(input.properties, builder);
+        return builder.build();
+    }
+}
@@ -0,0 +1,116 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import protobuf_unittest.UnittestMultiNestedProto.Holder;
+import protobuf_unittest.UnittestMultiNestedProto.Inner;
+import protobuf_unittest.UnittestMultiNestedProto.Outer;
+import protobuf_unittest.UnittestProto.ForeignEnum;
+import protobuf_unittest.UnittestProto.ForeignMessage;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+import protobuf_unittest.UnittestProto.TestRecursiveMessage;
+
+import java.util.Random;
+
+/**
+ * The message shapes the benchmarks run against, built from the test protos. The contents are
+ * kept to what every format can read back from its own output.
+ */
+public enum Messages {
+
+    /** A handful of scalar fields. */
+    SMALL {
+        @Override
+        Message create() {
+            return TestAllTypes.newBuilder()
+                    .setOptionalInt32(42)
+                    .setOptionalString("hello")
+                    .setOptionalBool(true)
+                    .setOptionalForeignEnum(ForeignEnum.FOREIGN_BAR)
+                    .build();
+        }
+    },
+
+    /** Every optional field of TestAllTypes plus a few repeated values. */
+    MEDIUM {
+        @Override
+        Message create() {
+            return TestAllTypes.newBuilder()
+                    .setOptionalInt32(-101)
+                    .setOptionalInt64(1234567890123L)
+                    .setOptionalUint32(-2)
+                    .setOptionalUint64(-3L)
+                    .setOptionalSint32(-104)
+                    .setOptionalSint64(-105L)
+                    .setOptionalFixed32(106)
+                    .setOptionalFixed64(107L)
+                    .setOptionalSfixed32(108)
+                    .setOptionalSfixed64(109L)
+                    .setOptionalFloat(110.5f)
+                    .setOptionalDouble(111.25)
+                    .setOptionalBool(true)
+                    .setOptionalString("a medium sized string of plain words")
+                    .setOptionalBytes(ByteString.copyFromUtf8("some bytes"))
+                    .setOptionalGroup(TestAllTypes.OptionalGroup.newBuilder().setA(117))
+                    .setOptionalNestedMessage(TestAllTypes.NestedMessage.newBuilder().setBb(118))
+                    .setOptionalForeignMessage(ForeignMessage.newBuilder().setC(119))
+                    .setOptionalNestedEnum(TestAllTypes.NestedEnum.BAZ)
+                    .setOptionalForeignEnum(ForeignEnum.FOREIGN_BAZ)
+                    .addRepeatedInt32(201).addRepeatedInt32(301)
+                    .addRepeatedString("first").addRepeatedString("second")
+                    .addRepeatedNestedMessage(TestAllTypes.NestedMessage.newBuilder().setBb(218))
+                    .build();
+        }
+    },
+
+    /** 64 levels of TestRecursiveMessage. */
+    DEEP {
+        @Override
+        Message create() {
+            TestRecursiveMessage message = TestRecursiveMessage.newBuilder().setI(0).build();
+            for (int i = 1; i < 64; i++) {
+                message = TestRecursiveMessage.newBuilder().setI(i).setA(message).build();
+            }
+            return message;
+        }
+    },
+
+    /** Long repeated scalar fields and lists of sub-messages. */
+    REPEATED {
+        @Override
+        Message create() {
+            Outer.Builder outer = Outer.newBuilder();
+            for (int i = 0; i < 10; i++) {
+                Inner.Builder inner = Inner.newBuilder();
+                for (int j = 0; j < 20; j++) {
+                    inner.addData1(Holder.newBuilder().setId("id-" + i + "-" + j).setData("data " + j));
+                }
+                outer.addOne(inner);
+            }
+            return outer.build();
+        }
+    },
+
+    /**
+     * Large bytes fields. The bytes are alphanumeric, XmlFormat, XmlJavaxFormat and the default
+     * JSON byte escaping do not read arbitrary bytes back.
+     */
+    BYTES {
+        @Override
+        Message create() {
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+            Random random = new Random(1);
+            TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+            for (int i = 0; i < 16; i++) {
+                byte[] bytes = new byte[4 * 1024];
+                for (int j = 0; j < bytes.length; j++) {
+                    bytes[j] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+                }
+                builder.addRepeatedBytes(ByteString.copyFrom(bytes));
+            }
+            return builder.build();
+        }
+    };
+
+    abstract Message create();
+}
@@ -0,0 +1,92 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.googlecode.protobuf.format.JsonFormat;
+import com.googlecode.protobuf.format.JsonJacksonFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protobuf_unittest.UnittestProto.ForeignMessage;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges one large import file, an object with a repeated message field of {@code elements}
+ * entries, with {@link JsonFormat} and {@link JsonJacksonFormat}, serially ({@code parallelism}
+ * 0) or with the elements parsed in batches on a {@link ForkJoinPool} of {@code parallelism}
+ * threads. Any speed-up is bounded by the cores of the machine the benchmark runs on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelMergeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Import {
+        @Param({"100000"})
+        int elements;
+
+        @Param({"0", "4"})
+        int parallelism;
+
+        ForkJoinPool pool;
+        JsonFormat json;
+        JsonJacksonFormat jackson;
+        String text;
+        byte[] bytes;
+
+        @Setup
+        public void setUp() throws IOException {
+            if (parallelism > 0) {
+                pool = new ForkJoinPool(parallelism);
+            }
+            json = JsonFormat.newBuilder().setParallelMerge(pool, 1000).build();
+            jackson = new JsonJacksonFormat(new JsonFactory(), pool, 1000);
+
+            TestAllTypes.Builder batch = TestAllTypes.newBuilder();
+            for (int i = 0; i < elements; i++) {
+                batch.addRepeatedNestedMessage(TestAllTypes.NestedMessage.newBuilder().setBb(i));
+                batch.addRepeatedForeignMessage(ForeignMessage.newBuilder().setC(i * 31));
+            }
+            text = json.printToString(batch.build());
+            bytes = text.getBytes("UTF-8");
+        }
+
+        @TearDown
+        public void tearDown() {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Benchmark
+    public TestAllTypes mergeJson(Import in) throws IOException {
+        TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+        in.json.merge(in.text, ExtensionRegistry.getEmptyRegistry(), builder);
+        return builder.build();
+    }
+
+    @Benchmark
+    public TestAllTypes mergeJackson(Import in) throws IOException {
+        TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+        in.jackson.merge(new ByteArrayInputStream(in.bytes), builder);
+        return builder.build();
+    }
+}
@@ -0,0 +1,76 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.googlecode.protobuf.format.JsonFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protobuf_unittest.UnittestProto.ForeignMessage;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints one large batch message, a repeated message field of {@code elements} entries, with
+ * {@link JsonFormat} serially ({@code parallelism} 0) or split into chunks on a
+ * {@link ForkJoinPool} of {@code parallelism} threads. Any speed-up is bounded by the cores of
+ * the machine the benchmark runs on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelPrintBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Batch {
+        @Param({"100000"})
+        int elements;
+
+        @Param({"0", "4"})
+        int parallelism;
+
+        ForkJoinPool pool;
+        JsonFormat format;
+        TestAllTypes message;
+
+        @Setup
+        public void setUp() {
+            JsonFormat.Builder builder = JsonFormat.newBuilder();
+            if (parallelism > 0) {
+                pool = new ForkJoinPool(parallelism);
+                builder.setParallelPrint(pool, 10000);
+            }
+            format = builder.build();
+
+            TestAllTypes.Builder batch = TestAllTypes.newBuilder();
+            for (int i = 0; i < elements; i++) {
+                batch.addRepeatedNestedMessage(TestAllTypes.NestedMessage.newBuilder().setBb(i));
+                batch.addRepeatedForeignMessage(ForeignMessage.newBuilder().setC(i * 31));
+            }
+            message = batch.build();
+        }
+
+        @TearDown
+        public void tearDown() {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Benchmark
+    public String print(Batch batch) {
+        return batch.format.printToString(batch.message);
+    }
+}
@@ -0,0 +1,100 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.XmlJavaxFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints and merges with {@link XmlJavaxFormat} on the JDK's StAX implementation ({@code jdk})
+ * and on the one found on the classpath ({@code classpath}), e.g. Woodstox or Aalto. Without
+ * another implementation on the classpath both are the JDK's. To compare, put one on the
+ * classpath and run {@code org.openjdk.jmh.Main} instead of {@code -jar}:
+ * <pre>
+ * java -cp target/benchmarks.jar:woodstox-core.jar:stax2-api.jar org.openjdk.jmh.Main StaxBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StaxBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @State(Scope.Thread)
+    public static class Stax {
+        @Param({"jdk", "classpath"})
+        String stax;
+
+        @Param({"MEDIUM", "REPEATED"})
+        Messages message;
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+        XmlJavaxFormat format;
+        Message instance;
+        byte[] printed;
+
+        @Setup
+        public void setUp() throws Exception {
+            if ("jdk".equals(stax)) {
+                format = new XmlJavaxFormat(XmlJavaxFormat.configureInputFactory(jdkInputFactory()),
+                        jdkOutputFactory());
+            } else {
+                format = new XmlJavaxFormat(XmlJavaxFormat.configureInputFactory(XMLInputFactory.newFactory()),
+                        XMLOutputFactory.newFactory());
+            }
+            instance = message.create();
+            printed = format.printToBytes(instance);
+        }
+    }
+
+    @Benchmark
+    public int print(Stax state) throws IOException {
+        state.output.reset();
+        state.format.print(state.instance, state.output, UTF_8);
+        return state.output.size();
+    }
+
+    @Benchmark
+    public Message merge(Stax state) throws IOException {
+        Message.Builder builder = state.instance.newBuilderForType();
+        state.format.merge(new ByteArrayInputStream(state.printed), UTF_8, builder);
+        return builder.build();
+    }
+
+    private static XMLInputFactory jdkInputFactory() throws Exception {
+        try {
+            // Java 9 and later.
+            return (XMLInputFactory) XMLInputFactory.class.getMethod("newDefaultFactory").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return (XMLInputFactory) Class.forName("com.sun.xml.internal.stream.XMLInputFactoryImpl").newInstance();
+        }
+    }
+
+    private static XMLOutputFactory jdkOutputFactory() throws Exception {
+        try {
+            return (XMLOutputFactory) XMLOutputFactory.class.getMethod("newDefaultFactory").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return (XMLOutputFactory) Class.forName("com.sun.xml.internal.stream.XMLOutputFactoryImpl").newInstance();
+        }
+    }
+}
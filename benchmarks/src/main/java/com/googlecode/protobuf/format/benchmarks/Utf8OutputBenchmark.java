@@ -0,0 +1,75 @@
+package com.googlecode.protobuf.format.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.googlecode.protobuf.format.JsonFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protobuf_unittest.UnittestProto.ForeignMessage;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints the same message as UTF-8 through {@link JsonFormat#print(com.google.protobuf.Message,
+ * java.io.OutputStream, Charset)}, which encodes with a {@code Utf8Writer}, and through the
+ * {@link Appendable} overload wrapped in an {@link OutputStreamWriter}, which is what the stream
+ * overload used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8OutputBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final JsonFormat format = new JsonFormat();
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+    private TestAllTypes message;
+
+    @Setup
+    public void setUp() {
+        TestAllTypes.Builder builder = TestAllTypes.newBuilder()
+                .setOptionalInt64(1234567890123L)
+                .setOptionalString("plain ascii text")
+                .setOptionalBytes(ByteString.copyFromUtf8("bytes"))
+                .setOptionalForeignMessage(ForeignMessage.newBuilder().setC(12));
+        for (int i = 0; i < 100; i++) {
+            builder.addRepeatedString("value number " + i + " - grüße €");
+            builder.addRepeatedInt32(i * 7919);
+            builder.addRepeatedForeignMessage(ForeignMessage.newBuilder().setC(i));
+        }
+        message = builder.build();
+    }
+
+    @Benchmark
+    public int utf8Writer() throws IOException {
+        output.reset();
+        format.print(message, output, UTF_8);
+        return output.size();
+    }
+
+    @Benchmark
+    public int outputStreamWriter() throws IOException {
+        output.reset();
+        Writer writer = new OutputStreamWriter(output, UTF_8);
+        format.print(message, writer);
+        writer.flush();
+        return output.size();
+    }
+}
@@ -13,6 +13,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 
@@ -21,28 +23,99 @@ import com.google.protobuf.Message;
 import com.google.protobuf.Message.Builder;
 import com.google.protobuf.UnknownFieldSet;
 import com.googlecode.protobuf.format.ProtobufFormatter.ParseException;
+import com.googlecode.protobuf.format.util.ByteBufferReadable;
 import com.googlecode.protobuf.format.util.TextUtils;
+import com.googlecode.protobuf.format.util.Utf8Writer;
 
 public abstract class AbstractCharBasedFormatter extends ProtobufFormatter {
 
+	private final OutputSizes charSizes = new OutputSizes(this);
+
+	protected AbstractCharBasedFormatter() {
+	}
+
+	protected AbstractCharBasedFormatter(Charset defaultCharset) {
+		super(defaultCharset);
+	}
+
 	@Override
 	public void print(Message message, OutputStream output, Charset cs)
 			throws IOException {
-		OutputStreamWriter writer = new OutputStreamWriter(output, cs);
+		Writer writer = createWriter(output, cs);
 		print(message, writer);
 		writer.flush();
 	}
 	
 	abstract public void print(Message message, Appendable output) throws IOException;
 
+	/**
+	 * Prints the fields of {@code message} selected by {@code mask} to {@code output}.
+	 */
+	public void print(Message message, FieldMask mask, Appendable output) throws IOException {
+		print(mask.project(message), output);
+	}
+
+	@Override
+	void print(Message message, OutputStream output, Charset cs, int expectedSize) throws IOException {
+		if (!Utf8Writer.supports(cs)) {
+			print(message, output, cs);
+			return;
+		}
+		// A small message does not need the writer's full size buffer.
+		Writer writer = Utf8Writer.create(output, cs, expectedSize);
+		print(message, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Prints straight into a {@link StringBuilder}, with no charset involved. The builder is sized
+	 * like {@link #estimateSize(Message)}, from the lengths of earlier strings.
+	 */
+	@Override
+	public String printToString(Message message) {
+		StringBuilder text = new StringBuilder(OutputSizes.withHeadroom(charSizes.estimate(message)));
+		try {
+			print(message, text);
+		} catch (IOException e) {
+			throw new RuntimeException("Writing to a StringBuilder threw an IOException (should never happen).",
+					e);
+		}
+		charSizes.record(message, text.length());
+		return text.toString();
+	}
+
+	@Override
+	public String printToString(UnknownFieldSet fields) {
+		StringBuilder text = new StringBuilder();
+		try {
+			print(fields, text);
+		} catch (IOException e) {
+			throw new RuntimeException("Writing to a StringBuilder threw an IOException (should never happen).",
+					e);
+		}
+		return text.toString();
+	}
+
 
 	@Override
 	public void print(UnknownFieldSet fields, OutputStream output, Charset cs)
 			throws IOException {
-		OutputStreamWriter writer = new OutputStreamWriter(output, cs);
+		Writer writer = createWriter(output, cs);
 		print(fields, writer);
 		writer.flush();
 	}
+
+	/**
+	 * Creates the writer {@code print} encodes its text with. UTF-8 and US-ASCII are encoded
+	 * straight into a byte buffer by a {@link Utf8Writer}; other charsets use an
+	 * {@link OutputStreamWriter}.
+	 */
+	protected Writer createWriter(OutputStream output, Charset cs) {
+		if (Utf8Writer.supports(cs)) {
+			return Utf8Writer.create(output, cs);
+		}
+		return new OutputStreamWriter(output, cs);
+	}
 	
 	abstract public void print(UnknownFieldSet fields, Appendable output) throws IOException;
 
@@ -52,6 +125,16 @@ public abstract class AbstractCharBasedFormatter extends ProtobufFormatter {
 		InputStreamReader reader = new InputStreamReader(input, cs);
 		merge(reader, extensionRegistry, builder);
 	}
+
+	/**
+	 * Decodes the bytes straight from the buffer with a {@link ByteBufferReadable}, which widens
+	 * ASCII by hand for UTF-8 and US-ASCII, rather than through an {@link InputStreamReader}.
+	 */
+	@Override
+	public void merge(ByteBuffer input, Charset cs,
+			ExtensionRegistry extensionRegistry, Builder builder) throws IOException {
+		merge(new ByteBufferReadable(input, cs), extensionRegistry, builder);
+	}
 	
 	
 	abstract public void merge(CharSequence input, ExtensionRegistry extensionRegistry,
@@ -64,13 +147,9 @@ public abstract class AbstractCharBasedFormatter extends ProtobufFormatter {
     public void merge(Readable input,
     		ExtensionRegistry extensionRegistry,
     		Message.Builder builder) throws IOException {
-        // Read the entire input to a String then parse that.
-
-        // If StreamTokenizer were not quite so crippled, or if there were a kind
-        // of Reader that could read in chunks that match some particular regex,
-        // or if we wanted to write a custom Reader to tokenize our stream, then
-        // we would not have to read to one big String. Alas, none of these is
-        // the case. Oh well.
+        // Read the entire input to a String then parse that. Formats whose
+        // tokenizer can pull from a BufferedCharSequence override this to
+        // parse the input as it is read.
 
 		merge(TextUtils.toStringBuilder(input), extensionRegistry, builder);
     }
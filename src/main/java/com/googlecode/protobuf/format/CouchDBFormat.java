@@ -1,12 +1,13 @@
 package com.googlecode.protobuf.format;
 
 
-import java.io.IOException;
+import java.nio.charset.Charset;
 
+import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
-import com.google.protobuf.UnknownFieldSet;
 import com.googlecode.protobuf.format.bits.ByteSerializer;
+import com.googlecode.protobuf.format.util.BufferedCharSequence;
 
 /**
  * Created by IntelliJ IDEA.
@@ -17,44 +18,52 @@ import com.googlecode.protobuf.format.bits.ByteSerializer;
  */
 public class CouchDBFormat extends JsonFormat {
 
+    public CouchDBFormat() {
+    }
+
     /**
-     * Outputs a textual representation of the Protocol Message supplied into the parameter output.
-     * (This representation is the new version of the classic "ProtocolPrinter" output from the
-     * original Protocol Buffer system)
+     * @param defaultCharset the character set to use by default, when unspecified
      */
-    public void print(final Message message, Appendable output) throws IOException {
-        CouchDBGenerator generator = new CouchDBGenerator(output);
-        generator.print("{");
-        print(message, generator);
-        generator.print("}");
+    public CouchDBFormat(Charset defaultCharset) {
+        super(JsonFormat.newBuilder().setDefaultCharset(defaultCharset));
     }
 
     /**
-     * Outputs a textual representation of {@code fields} to {@code output}.
+     * Creates a CouchDB format with the settings of {@code builder}.
      */
-    public void print(final UnknownFieldSet fields, Appendable output) throws IOException {
-        CouchDBGenerator generator = new CouchDBGenerator(output);
-        generator.print("{");
-        printUnknownFields(fields, generator);
-        generator.print("}");
+    public CouchDBFormat(JsonFormat.Builder builder) {
+        super(builder);
     }
 
-
     /**
-     * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
-     * Extensions will be recognized if they are registered in {@code extensionRegistry}.
+     * Prints the {@code id} and {@code rev} fields as CouchDB's {@code _id} and {@code _rev}.
      */
-    public void merge(CharSequence input,
-                             ExtensionRegistry extensionRegistry,
-                             Message.Builder builder) throws ParseException {
-        Tokenizer tokenizer = new Tokenizer(byteSerializer, input);
+    @Override
+    protected String getFieldName(FieldDescriptor field) {
+        String name = super.getFieldName(field);
+        if ("id".equals(name)) {
+            return "_id";
+        } else if ("rev".equals(name)) {
+            return "_rev";
+        }
+        return name;
+    }
 
-        // Based on the state machine @ http://json.org/
 
-        tokenizer.consume("{"); // Needs to happen when the object starts.
-        while (!tokenizer.tryConsume("}")) { // Continue till the object is done
-            mergeField(tokenizer, extensionRegistry, builder);
-        }
+    @Override
+    protected Tokenizer createTokenizer(BufferedCharSequence input) {
+        return new Tokenizer(byteSerializer, input);
+    }
+
+    /**
+     * Parse a single message from {@code tokenizer} and merge it into {@code builder}. Unlike
+     * {@link JsonFormat}, trailing data after the document is ignored.
+     */
+    @Override
+    protected void merge(JsonFormat.Tokenizer tokenizer,
+                         ExtensionRegistry extensionRegistry,
+                         Message.Builder builder) throws ParseException {
+        mergeObject(tokenizer, extensionRegistry, builder);
     }
 
     protected static class Tokenizer extends JsonFormat.Tokenizer {
@@ -66,6 +75,13 @@ public class CouchDBFormat extends JsonFormat {
             super(byteSerializer, text);
         }
 
+        /**
+         * Construct a tokenizer that pulls tokens from the given buffered input.
+         */
+        public Tokenizer(ByteSerializer byteSerializer, BufferedCharSequence text) {
+            super(byteSerializer, text);
+        }
+
         @Override
         public String consumeIdentifier() throws ParseException {
             String id = super.consumeIdentifier();
@@ -77,22 +93,4 @@ public class CouchDBFormat extends JsonFormat {
             return id;
         }
     }
-
-    protected static class CouchDBGenerator extends JsonFormat.JsonGenerator {
-
-        public CouchDBGenerator(Appendable output) {
-            super(output);
-        }
-
-        @Override
-        public void print(CharSequence text) throws IOException {
-            if ("id".equals(text)) {
-                super.print("_id");
-            } else if ("rev".equals(text)) {
-                super.print("_rev");
-            } else {
-                super.print(text);
-            }
-        }
-    }
 }
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Selects the fields to print, as paths of field names such as {@code "id"} or {@code
+ * "address.city"}, like protobuf's {@code google.protobuf.FieldMask}. A path selects its last
+ * field with everything in it. A path through a repeated message field applies to every
+ * element.
+ * <p>
+ * For each message type it is used with, a mask is compiled once into a tree of field
+ * descriptors. {@link #project(Message)} follows that tree. It only visits the selected fields,
+ * and the fields left out are never formatted. Masks are immutable and can be shared between
+ * threads.
+ */
+public final class FieldMask {
+
+    private final List<String> paths;
+    private final ConcurrentMap<Descriptor, Node> trees = new ConcurrentHashMap<Descriptor, Node>();
+
+    private FieldMask(List<String> paths) {
+        this.paths = Collections.unmodifiableList(paths);
+    }
+
+    public static FieldMask of(String... paths) {
+        return of(Arrays.asList(paths));
+    }
+
+    public static FieldMask of(Iterable<String> paths) {
+        List<String> list = new ArrayList<String>();
+        for (String path : paths) {
+            if (path.length() == 0) {
+                throw new IllegalArgumentException("Empty path");
+            }
+            list.add(path);
+        }
+        return new FieldMask(list);
+    }
+
+    /**
+     * Parses comma separated paths, e.g. {@code "id,address.city"} from a request parameter, as
+     * the JSON form of {@code google.protobuf.FieldMask} writes them.
+     */
+    public static FieldMask fromString(String paths) {
+        List<String> list = new ArrayList<String>();
+        for (String path : paths.split(",")) {
+            path = path.trim();
+            if (path.length() > 0) {
+                list.add(path);
+            }
+        }
+        return new FieldMask(list);
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return a message of the type of {@code message} with only the selected fields set
+     * @throws IllegalArgumentException if a path does not name a field of the message's type, or
+     *                                  goes through a field which is not a message
+     */
+    public Message project(Message message) {
+        return project(message, tree(message.getDescriptorForType()));
+    }
+
+    private static Message project(Message message, Node node) {
+        Message.Builder builder = message.newBuilderForType();
+        for (Map.Entry<FieldDescriptor, Node> entry : node.fields.entrySet()) {
+            FieldDescriptor field = entry.getKey();
+            Node child = entry.getValue();
+            if (field.isRepeated()) {
+                int count = message.getRepeatedFieldCount(field);
+                for (int i = 0; i < count; i++) {
+                    Object value = message.getRepeatedField(field, i);
+                    builder.addRepeatedField(field, child == null ? value : project((Message) value, child));
+                }
+            } else if (message.hasField(field)) {
+                Object value = message.getField(field);
+                builder.setField(field, child == null ? value : project((Message) value, child));
+            }
+        }
+        // Required fields may well be left out.
+        return builder.buildPartial();
+    }
+
+    private Node tree(Descriptor type) {
+        Node tree = trees.get(type);
+        if (tree == null) {
+            tree = compile(type);
+            trees.putIfAbsent(type, tree);
+        }
+        return tree;
+    }
+
+    private Node compile(Descriptor type) {
+        Node root = new Node();
+        for (String path : paths) {
+            Node node = root;
+            Descriptor current = type;
+            String[] names = path.split("\\.", -1);
+            for (int i = 0; i < names.length; i++) {
+                FieldDescriptor field = current.findFieldByName(names[i]);
+                if (field == null) {
+                    throw new IllegalArgumentException("Message type \"" + current.getFullName()
+                            + "\" has no field named \"" + names[i] + "\" (in path \"" + path + "\").");
+                }
+                if (node.fields.containsKey(field) && node.fields.get(field) == null) {
+                    // A shorter path selects the whole field already.
+                    break;
+                }
+                if (i == names.length - 1) {
+                    node.fields.put(field, null);
+                    break;
+                }
+                if (field.getJavaType() != FieldDescriptor.JavaType.MESSAGE) {
+                    throw new IllegalArgumentException("Field \"" + field.getFullName()
+                            + "\" is not a message (in path \"" + path + "\").");
+                }
+                Node child = node.fields.get(field);
+                if (child == null) {
+                    child = new Node();
+                    node.fields.put(field, child);
+                }
+                node = child;
+                current = field.getMessageType();
+            }
+        }
+        return root;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (String path : paths) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(path);
+        }
+        return text.toString();
+    }
+
+    /**
+     * The selected fields of one message type. A field maps to null if it is selected with
+     * everything in it, or to the selection within its message otherwise.
+     */
+    private static final class Node {
+        final Map<FieldDescriptor, Node> fields = new LinkedHashMap<FieldDescriptor, Node>();
+    }
+}
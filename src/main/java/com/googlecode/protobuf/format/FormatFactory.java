@@ -8,9 +8,31 @@
 
 package com.googlecode.protobuf.format;
 
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates formatters, and keeps one shared instance of each for {@link #getFormatter(Formatter)}.
+ * Formatters are thread-safe, so the shared instances can be used by any number of threads.
+ */
 public class FormatFactory {
-	
-	public FormatFactory() {}
+
+	private final Charset defaultCharset;
+	private final ConcurrentMap<Formatter, ProtobufFormatter> formatters =
+			new ConcurrentHashMap<Formatter, ProtobufFormatter>();
+
+	public FormatFactory() {
+		this(Charset.defaultCharset());
+	}
+
+	/**
+	 * @param defaultCharset the default charset of the formatters this factory creates
+	 */
+	public FormatFactory(Charset defaultCharset) {
+		this.defaultCharset = defaultCharset;
+	}
 	
 	public enum Formatter {
 		COUCHDB (CouchDBFormat.class),
@@ -32,9 +54,33 @@ public class FormatFactory {
 	}
 	
 	
+	/**
+	 * Returns the shared instance of {@code formatter}, creating it on first use.
+	 */
+	public ProtobufFormatter getFormatter(Formatter formatter) {
+		ProtobufFormatter instance = formatters.get(formatter);
+		if (instance == null) {
+			instance = createFormatter(formatter);
+			ProtobufFormatter existing = formatters.putIfAbsent(formatter, instance);
+			if (existing != null) {
+				instance = existing;
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new instance of {@code formatter} with the default charset of this factory,
+	 * through its {@code (Charset)} constructor. Prefer {@link #getFormatter(Formatter)}, which
+	 * shares one instance.
+	 */
 	public ProtobufFormatter createFormatter(Formatter formatter) {
 		try {
-			return formatter.getFormatterClass().newInstance();
+			return formatter.getFormatterClass().getConstructor(Charset.class).newInstance(defaultCharset);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
 		} catch (InstantiationException e) {
 			throw new RuntimeException(e);
 		} catch (IllegalAccessException e) {
@@ -31,6 +31,7 @@ package com.googlecode.protobuf.format;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -40,6 +41,7 @@ import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
 import com.google.protobuf.Message.Builder;
 import com.google.protobuf.UnknownFieldSet;
+import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import static com.googlecode.protobuf.format.util.TextUtils.*;
@@ -60,6 +62,16 @@ public final class HtmlFormat extends AbstractCharBasedFormatter {
     private static final String FIELD_NAME_STYLE = "font-weight: bold; color: #669966;font-size: 14px; font-family: sans-serif;";
     private static final String FIELD_VALUE_STYLE = "color: #3300FF;font-size: 13px; font-family: sans-serif;";
 
+    public HtmlFormat() {
+    }
+
+    /**
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public HtmlFormat(Charset defaultCharset) {
+        super(defaultCharset);
+    }
+
     
     public void print(final Message message, Appendable output) throws IOException {
     	HtmlGenerator generator = new HtmlGenerator(output);
@@ -77,6 +89,18 @@ public final class HtmlFormat extends AbstractCharBasedFormatter {
         generator.print("</body></html>");
 	}
 	
+	@Override
+	protected int fieldOverhead(FieldDescriptor field) {
+		// The name and value in styled spans, then a line break.
+		return field.getName().length() + FIELD_NAME_STYLE.length() + FIELD_VALUE_STYLE.length() + 50;
+	}
+
+	@Override
+	protected int messageOverhead(Descriptor type) {
+		// The page header and title, or the braces and indented div of a nested message.
+		return META_CONTENT.length() + MAIN_DIV_STYLE.length() + 2 * type.getFullName().length() + 90;
+	}
+
 	@Override
 	public void merge(CharSequence input, ExtensionRegistry extensionRegistry,
 			Builder builder) throws IOException {
@@ -1,9 +1,13 @@
 package com.googlecode.protobuf.format;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,6 +16,7 @@ import com.google.protobuf.Descriptors;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
 import com.google.protobuf.UnknownFieldSet;
+import com.googlecode.protobuf.format.util.BufferedCharSequence;
 import static com.googlecode.protobuf.format.util.TextUtils.*;
 
 /**
@@ -28,6 +33,19 @@ import static com.googlecode.protobuf.format.util.TextUtils.*;
  */
 public class JavaPropsFormat extends AbstractCharBasedFormatter {
 
+	private final ConcurrentMap<Descriptors.Descriptor, Map<String, Descriptors.FieldDescriptor>> fieldNames =
+			new ConcurrentHashMap<Descriptors.Descriptor, Map<String, Descriptors.FieldDescriptor>>();
+
+	public JavaPropsFormat() {
+	}
+
+	/**
+	 * @param defaultCharset the character set to use by default, when unspecified
+	 */
+	public JavaPropsFormat(Charset defaultCharset) {
+		super(defaultCharset);
+	}
+
 	/**
 	 * Outputs a textual representation of the Protocol Message supplied into
 	 * the parameter output. (This representation is the new version of the
@@ -44,6 +62,17 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
 		final JavaPropsGenerator generator = new JavaPropsGenerator(output);
 	    printUnknownFields(fields, generator);
 	}
+
+	@Override
+	protected int fieldOverhead(Descriptors.FieldDescriptor field) {
+		// prefix.name[index]=value, the prefix is counted once per level of nesting.
+		return field.getName().length() + 6;
+	}
+
+	@Override
+	protected int messageOverhead(Descriptors.Descriptor type) {
+		return 0;
+	}
   
 
   
@@ -89,12 +118,16 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
         printSingleField(field, list.get(i), i, generator);
       }
     } else {
-      printSingleField(field, value, null, generator);
+      printSingleField(field, value, -1, generator);
     }
   }
 
+  /**
+   * @param collectionIndex the index of the element in a repeated field, or -1 for a singular
+   *                        field
+   */
   private void printSingleField(final Descriptors.FieldDescriptor field,
-                                       final Object value, final Integer collectionIndex,
+                                       final Object value, final int collectionIndex,
                                        final JavaPropsGenerator generator)
                                        throws IOException {
     if (field.isExtension()) {
@@ -110,47 +143,28 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
         generator.print(field.getFullName());
       }
       generator.print("]");
-    } else {
-      if (field.getType() != Descriptors.FieldDescriptor.Type.GROUP &&
-              field.getType() != Descriptors.FieldDescriptor.Type.MESSAGE) {
-        // The field is a primitive value, no need to unwind the path.
-        generator.print(createFieldNameCollectionIndex(field.getName(), collectionIndex));
-      }
     }
 
     if (field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
       // Groups must be serialized with their original capitalization.
-      generator.indent(createFieldNameCollectionIndex(field.getMessageType().getName(), collectionIndex));
+      generator.indent(field.getMessageType().getName(), collectionIndex);
+      printFieldValue(field, value, generator);
+      generator.outdent();
     } else if (field.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
-      //generator.print(" {\n");
-      generator.indent(createFieldNameCollectionIndex(field.getName(), collectionIndex));
+      generator.indent(field.getName(), collectionIndex);
+      printFieldValue(field, value, generator);
+      generator.outdent();
     } else {
+      if (!field.isExtension()) {
+        // The field is a primitive value, no need to unwind the path.
+        generator.printKey(field.getName(), collectionIndex);
+      }
       generator.print("=");
-    }
-
-    printFieldValue(field, value, generator);
-
-    if (field.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
-      generator.outdent(createFieldNameCollectionIndex(field.getName(), collectionIndex));
-      //generator.print("");
-    } else if (field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
-      generator.outdent(createFieldNameCollectionIndex(field.getMessageType().getName(), collectionIndex));
-      //generator.print("");
-    } else {
+      printFieldValue(field, value, generator);
       generator.print("\n");
     }
   }
 
-  private String createFieldNameCollectionIndex(final String fieldName,
-                                                       final Integer collectionIndex)
-                                                       throws IOException{
-    if (collectionIndex != null) {
-      return fieldName + "[" + collectionIndex.toString() + "]";
-    } else {
-      return fieldName;
-    }
-  }
-
   private void printFieldValue(final Descriptors.FieldDescriptor field,
                                       final Object value,
                                       final JavaPropsGenerator generator)
@@ -162,6 +176,9 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
       case SINT64:
       case SFIXED32:
       case SFIXED64:
+        generator.print(((Number) value).longValue());
+        break;
+
       case FLOAT:
       case DOUBLE:
       case BOOL:
@@ -171,7 +188,7 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
 
       case UINT32:
       case FIXED32:
-        generator.print(unsignedToString((Integer) value));
+        generator.print(((Integer) value) & 0xFFFFFFFFL);
         break;
 
       case UINT64:
@@ -236,9 +253,9 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
       for (final UnknownFieldSet value : field.getGroupList()) {
         //generator.print(entry.getKey().toString());
         //generator.print("={\n");
-        generator.indent(entry.getKey().toString());
+        generator.indent(entry.getKey().toString(), -1);
         printUnknownFields(value, generator);
-        generator.outdent(entry.getKey().toString());
+        generator.outdent();
         //generator.print("}\n");
         generator.print("\n");
       }
@@ -248,41 +265,149 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
   
   
 
+  /**
+   * Converts {@code message} to {@link Properties} directly, with no text in between. Keys are
+   * the ones {@link #print(Message, Appendable)} writes, such as {@code a.b[2].c}, with
+   * extensions as {@code [full.name]}. Values are not quoted: a string is its own text, bytes
+   * are escaped as in the text format and an enum is the name of its value. Unknown fields are
+   * left out.
+   */
+  public Properties toProperties(final Message message) {
+    final Properties properties = new Properties();
+    putProperties(message, new StringBuilder(), properties);
+    return properties;
+  }
+
+  private void putProperties(final Message message, final StringBuilder key,
+                             final Properties properties) {
+    final int prefixLength = key.length();
+    for (final Map.Entry<Descriptors.FieldDescriptor, Object> entry :
+         message.getAllFields().entrySet()) {
+      final Descriptors.FieldDescriptor field = entry.getKey();
+      if (field.isRepeated()) {
+        final List<?> list = (List<?>) entry.getValue();
+        for (int i = 0; i < list.size(); i++) {
+          putProperty(field, list.get(i), i, key, properties);
+          key.setLength(prefixLength);
+        }
+      } else {
+        putProperty(field, entry.getValue(), -1, key, properties);
+        key.setLength(prefixLength);
+      }
+    }
+  }
+
+  private void putProperty(final Descriptors.FieldDescriptor field, final Object value,
+                           final int collectionIndex, final StringBuilder key,
+                           final Properties properties) {
+    if (field.isExtension()) {
+      key.append('[').append(field.getFullName()).append(']');
+    } else if (field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+      key.append(field.getMessageType().getName());
+    } else {
+      key.append(field.getName());
+    }
+    if (collectionIndex >= 0) {
+      key.append('[').append(collectionIndex).append(']');
+    }
+
+    switch (field.getType()) {
+      case UINT32:
+      case FIXED32:
+        properties.put(key.toString(), unsignedToString((Integer) value));
+        break;
+
+      case UINT64:
+      case FIXED64:
+        properties.put(key.toString(), unsignedToString((Long) value));
+        break;
+
+      case BYTES:
+        properties.put(key.toString(), escapeBytes((ByteString) value));
+        break;
+
+      case ENUM:
+        properties.put(key.toString(), ((Descriptors.EnumValueDescriptor) value).getName());
+        break;
+
+      case MESSAGE:
+      case GROUP:
+        key.append('.');
+        putProperties((Message) value, key, properties);
+        break;
+
+      default:
+        // Strings are themselves, toString() does what we want for the others.
+        properties.put(key.toString(), value.toString());
+        break;
+    }
+  }
+
   /**
    * An inner class for writing text to the output stream.
+   * <p>
+   * The key path of the current message, such as {@code a.b[2].}, is kept in a char array with
+   * the length of each enclosing prefix on a stack. Field names are copied into it and indexes
+   * are written into it as digits, and the key of a line is written out of it in one call, so
+   * printing a property allocates nothing for its key.
    */
   private static final class JavaPropsGenerator {
-    private Appendable output;
+    private final Appendable output;
+    private final Writer writer;
+    private final StringBuilder builder;
     private boolean atStartOfLine = true;
-    private final StringBuilder indent = new StringBuilder();
+    private char[] path = new char[64];
+    private int pathLength;
+    private int[] prefixes = new int[8];
+    private int depth;
 
     private JavaPropsGenerator(final Appendable output) {
       this.output = output;
+      this.writer = output instanceof Writer ? (Writer) output : null;
+      this.builder = output instanceof StringBuilder ? (StringBuilder) output : null;
     }
 
     /**
-     * Indent text by two spaces.  After calling Indent(), two spaces will be
-     * inserted at the beginning of each line of text.  Indent() may be called
-     * multiple times to produce deeper indents.
+     * Appends {@code name[index].} to the key path of the lines that follow.
+     *
+     * @param index the index of the element in a repeated field, or -1 for no index
      */
-    public void indent(String objectPath) {
-      indent.append(objectPath);
-      indent.append(".");
-      //atStartOfLine = true;
+    public void indent(final String name, final int index) {
+      if (depth == prefixes.length) {
+        prefixes = Arrays.copyOf(prefixes, depth * 2);
+      }
+      prefixes[depth++] = pathLength;
+      appendKey(name, index);
+      append('.');
     }
 
     /**
-     * Reduces the current indent level by two spaces, or crashes if the indent
-     * level is zero.
+     * Removes the last segment added by {@link #indent(String, int)} from the key path.
      */
-    public void outdent(String objectPath) {
-      final int length = indent.length();
-      final int objectPathLength = objectPath.length() + 1;
-      if (length == 0) {
+    public void outdent() {
+      if (depth == 0) {
         throw new IllegalArgumentException(
             " Outdent() without matching Indent().");
       }
-      indent.delete(length - objectPathLength, length);
+      pathLength = prefixes[--depth];
+    }
+
+    /**
+     * Starts a line with the key path followed by {@code name[index]}.
+     */
+    public void printKey(final String name, final int index) throws IOException {
+      final int start = pathLength;
+      appendKey(name, index);
+      writeFrom(start);
+    }
+
+    /**
+     * Prints the digits of {@code value}, written in place after the key path.
+     */
+    public void print(final long value) throws IOException {
+      final int start = pathLength;
+      appendNumber(value);
+      writeFrom(start);
     }
 
     /**
@@ -294,24 +419,91 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
 
       for (int i = 0; i < size; i++) {
         if (text.charAt(i) == '\n') {
-          write(text.subSequence(pos, size), i - pos + 1);
+          write(text, pos, i + 1);
           pos = i + 1;
           atStartOfLine = true;
         }
       }
-      write(text.subSequence(pos, size), size - pos);
+      write(text, pos, size);
     }
 
-    private void write(final CharSequence data, final int size)
+    private void write(final CharSequence data, final int start, final int end)
                        throws IOException {
-      if (size == 0) {
+      if (start == end) {
         return;
       }
       if (atStartOfLine) {
         atStartOfLine = false;
-        output.append(indent);
+        writePath(0, pathLength);
+      }
+      output.append(data, start, end);
+    }
+
+    /**
+     * Writes what was appended to the key path after {@code start}, with the key path before it
+     * at the start of a line, and takes it off the key path again.
+     */
+    private void writeFrom(final int start) throws IOException {
+      writePath(atStartOfLine ? 0 : start, pathLength);
+      atStartOfLine = false;
+      pathLength = start;
+    }
+
+    private void writePath(final int start, final int end) throws IOException {
+      if (start == end) {
+        return;
+      }
+      if (writer != null) {
+        writer.write(path, start, end - start);
+      } else if (builder != null) {
+        builder.append(path, start, end - start);
+      } else {
+        output.append(CharBuffer.wrap(path, start, end - start));
+      }
+    }
+
+    private void appendKey(final String name, final int index) {
+      final int length = name.length();
+      ensureCapacity(length);
+      name.getChars(0, length, path, pathLength);
+      pathLength += length;
+      if (index >= 0) {
+        append('[');
+        appendNumber(index);
+        append(']');
+      }
+    }
+
+    private void appendNumber(long value) {
+      // Digits are taken from the negative value, which also covers Long.MIN_VALUE.
+      if (value < 0) {
+        append('-');
+      } else {
+        value = -value;
+      }
+      int digits = 1;
+      for (long rest = value; rest <= -10; rest /= 10) {
+        digits++;
+      }
+      ensureCapacity(digits);
+      int pos = pathLength + digits;
+      pathLength = pos;
+      do {
+        final long quotient = value / 10;
+        path[--pos] = (char) ('0' + (int) (quotient * 10 - value));
+        value = quotient;
+      } while (value != 0);
+    }
+
+    private void append(final char c) {
+      ensureCapacity(1);
+      path[pathLength++] = c;
+    }
+
+    private void ensureCapacity(final int extra) {
+      if (pathLength + extra > path.length) {
+        path = Arrays.copyOf(path, Math.max(path.length * 2, pathLength + extra));
       }
-      output.append(data);
     }
   }
 
@@ -343,11 +535,13 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
    *
    * <p>Luckily, Java's regular expression support does manage to be useful to
    * us.  (Barely:  We need {@code Matcher.usePattern()}, which is new in
-   * Java 1.5.)  So, we can use that, at least.  Unfortunately, this implies
-   * that we need to have the entire input in one contiguous string.
+   * Java 1.5.)  So, we can use that, at least.  The input is read through a
+   * {@link BufferedCharSequence}; whenever a match runs into the end of the
+   * buffered text ({@code Matcher.hitEnd()}) more input is read and the match
+   * is retried, so the entire input never has to be in one contiguous string.
    */
   private static final class Tokenizer {
-    private final CharSequence text;
+    private final BufferedCharSequence text;
     private final Matcher matcher;
     private String currentToken;
 
@@ -385,7 +579,7 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
       Pattern.CASE_INSENSITIVE);
 
     /** Construct a tokenizer that parses tokens from the given text. */
-    private Tokenizer(final CharSequence text) {
+    private Tokenizer(final BufferedCharSequence text) {
       this.text = text;
       this.matcher = WHITESPACE.matcher(text);
       skipWhitespace();
@@ -412,20 +606,20 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
         }
         ++pos;
       }
+      text.release(pos);
 
       // Match the next token.
-      if (matcher.regionStart() == matcher.regionEnd()) {
+      if (!text.has(pos)) {
         // EOF
         currentToken = "";
       } else {
-        matcher.usePattern(TOKEN);
-        if (matcher.lookingAt()) {
+        if (lookingAt(TOKEN)) {
           currentToken = matcher.group();
-          matcher.region(matcher.end(), matcher.regionEnd());
+          matcher.region(matcher.end(), text.length());
         } else {
           // Take one character.
           currentToken = String.valueOf(text.charAt(pos));
-          matcher.region(pos + 1, matcher.regionEnd());
+          matcher.region(pos + 1, text.length());
         }
 
         skipWhitespace();
@@ -437,9 +631,25 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
      * token.
      */
     private void skipWhitespace() {
-      matcher.usePattern(WHITESPACE);
-      if (matcher.lookingAt()) {
-        matcher.region(matcher.end(), matcher.regionEnd());
+      if (lookingAt(WHITESPACE)) {
+        matcher.region(matcher.end(), text.length());
+      }
+    }
+
+    /**
+    * Matches {@code pattern} at the start of the matcher region. The input is pulled in
+    * while the outcome could still change with more text (i.e. the match hit the end of
+    * the buffered characters).
+    */
+    private boolean lookingAt(Pattern pattern) {
+      matcher.usePattern(pattern);
+      matcher.region(matcher.regionStart(), text.length());
+      while (true) {
+        boolean found = matcher.lookingAt();
+        if (!matcher.hitEnd() || !text.fill()) {
+          return found;
+        }
+        matcher.region(matcher.regionStart(), text.length());
       }
     }
 
@@ -735,114 +945,142 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
                            final ExtensionRegistry extensionRegistry,
                            final Message.Builder builder)
                            throws ParseException {
-    final Tokenizer tokenizer = new Tokenizer(input);
-    final Map<String, Message> subMessages = new HashMap<String, Message>();
+    merge(new Tokenizer(new BufferedCharSequence(input)), extensionRegistry, builder);
+  }
+
+  /**
+   * Parse a text-format message from {@code input} and merge the contents
+   * into {@code builder}.  The input is tokenized as it is read, it is never
+   * buffered as a whole.
+   */
+  @Override
+  public void merge(final Readable input,
+                    final ExtensionRegistry extensionRegistry,
+                    final Message.Builder builder)
+                    throws IOException {
+    try {
+      merge(new Tokenizer(new BufferedCharSequence(input)), extensionRegistry, builder);
+    } catch (BufferedCharSequence.ReadException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Parses all properties. Sub-messages stay {@link MessageNode builders} while the input is
+   * read, so each is built exactly once at the end, however many properties it has.
+   */
+  private void merge(final Tokenizer tokenizer,
+                     final ExtensionRegistry extensionRegistry,
+                     final Message.Builder builder)
+                     throws ParseException {
+    final MessageNode root = new MessageNode(null, -1, builder);
+    // In order of creation, so every node comes after its parent.
+    final List<MessageNode> nodes = new ArrayList<MessageNode>();
 
     while (!tokenizer.atEnd()) {
-      mergeField(tokenizer, extensionRegistry, subMessages, builder);
+      mergeField(tokenizer, extensionRegistry, root, nodes);
+    }
+    build(root, nodes);
+  }
+
+  /**
+   * Builds every sub-message once, innermost first, and sets them in their parents.
+   */
+  private static void build(final MessageNode root, final List<MessageNode> nodes) {
+    for (int i = nodes.size() - 1; i >= 0; i--) {
+      final MessageNode node = nodes.get(i);
+      node.setChildren();
+      node.value = node.builder.buildPartial();
     }
+    root.setChildren();
   }
 
   /**
-   * Parse a single field from {@code tokenizer} and merge it into
-   * {@code builder}.
+   * Parse a single property from {@code tokenizer} and merge it into the
+   * builder of {@code node}, or of the sub-message its path leads to.
    */
   private void mergeField(final Tokenizer tokenizer,
                                  final ExtensionRegistry extensionRegistry,
-                                 final Map<String, Message> subMessages,
-                                 final Message.Builder builder)
+                                 MessageNode node,
+                                 final List<MessageNode> nodes)
                                  throws ParseException {
-    Descriptors.FieldDescriptor field;
-    final Descriptors.Descriptor type = builder.getDescriptorForType();
-    ExtensionRegistry.ExtensionInfo extension = null;
-
-    if (tokenizer.tryConsume("[")) {
-      // An extension.
-      final StringBuilder name =
-          new StringBuilder(tokenizer.consumeIdentifier());
-      while (tokenizer.tryConsume(".")) {
-        name.append('.');
-        name.append(tokenizer.consumeIdentifier());
-      }
+    while (true) {
+      final Message.Builder builder = node.builder;
+      Descriptors.FieldDescriptor field;
+      final Descriptors.Descriptor type = builder.getDescriptorForType();
+      ExtensionRegistry.ExtensionInfo extension = null;
+
+      if (tokenizer.tryConsume("[")) {
+        // An extension.
+        final StringBuilder name =
+            new StringBuilder(tokenizer.consumeIdentifier());
+        while (tokenizer.tryConsume(".")) {
+          name.append('.');
+          name.append(tokenizer.consumeIdentifier());
+        }
 
-      extension = extensionRegistry.findExtensionByName(name.toString());
+        extension = extensionRegistry.findExtensionByName(name.toString());
 
-      if (extension == null) {
-        throw tokenizer.parseExceptionPreviousToken(
-          "Extension \"" + name + "\" not found in the ExtensionRegistry.");
-      } else if (extension.descriptor.getContainingType() != type) {
-        throw tokenizer.parseExceptionPreviousToken(
-          "Extension \"" + name + "\" does not extend message type \"" +
-          type.getFullName() + "\".");
-      }
+        if (extension == null) {
+          throw tokenizer.parseExceptionPreviousToken(
+            "Extension \"" + name + "\" not found in the ExtensionRegistry.");
+        } else if (extension.descriptor.getContainingType() != type) {
+          throw tokenizer.parseExceptionPreviousToken(
+            "Extension \"" + name + "\" does not extend message type \"" +
+            type.getFullName() + "\".");
+        }
 
-      tokenizer.consume("]");
+        tokenizer.consume("]");
 
-      field = extension.descriptor;
-    } else {
-      final String name = tokenizer.consumeIdentifier();
-      field = type.findFieldByName(name);
-
-      // Group names are expected to be capitalized as they appear in the
-      // .proto file, which actually matches their type names, not their field
-      // names.
-      if (field == null) {
-        // Explicitly specify US locale so that this code does not break when
-        // executing in Turkey.
-        final String lowerName = name.toLowerCase(Locale.US);
-        field = type.findFieldByName(lowerName);
-        // If the case-insensitive match worked but the field is NOT a group,
-        if (field != null && field.getType() != Descriptors.FieldDescriptor.Type.GROUP) {
+        field = extension.descriptor;
+      } else {
+        final String name = tokenizer.consumeIdentifier();
+        field = type.findFieldByName(name);
+
+        // Group names are expected to be capitalized as they appear in the
+        // .proto file, which actually matches their type names, not their field
+        // names.
+        if (field == null) {
+          // Explicitly specify US locale so that this code does not break when
+          // executing in Turkey.
+          final String lowerName = name.toLowerCase(Locale.US);
+          field = type.findFieldByName(lowerName);
+          // If the case-insensitive match worked but the field is NOT a group,
+          if (field != null && field.getType() != Descriptors.FieldDescriptor.Type.GROUP) {
+            field = null;
+          }
+        }
+        // Again, special-case group names as described above.
+        if (field != null && field.getType() == Descriptors.FieldDescriptor.Type.GROUP &&
+            !field.getMessageType().getName().equals(name)) {
           field = null;
         }
-      }
-      // Again, special-case group names as described above.
-      if (field != null && field.getType() == Descriptors.FieldDescriptor.Type.GROUP &&
-          !field.getMessageType().getName().equals(name)) {
-        field = null;
-      }
 
-      if (field == null) {
-        throw tokenizer.parseExceptionPreviousToken(
-          "Message type \"" + type.getFullName() +
-          "\" has no field named \"" + name + "\".");
+        if (field == null) {
+          throw tokenizer.parseExceptionPreviousToken(
+            "Message type \"" + type.getFullName() +
+            "\" has no field named \"" + name + "\".");
+        }
       }
-    }
 
-    Object value = null;
-    Integer collectionIndex = null;
+      int collectionIndex = -1;
 
-    if (field.isRepeated()) {
-      tokenizer.consume("[");
-      collectionIndex = tokenizer.consumeInt32();
-      tokenizer.consume("]");
-    }
-
-    if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
-
-      tokenizer.consume(".");
-      //endToken = "}";
-
-      final Message.Builder subBuilder;
-
-      if (extension == null) {
-        subBuilder = builder.newBuilderForField(field);
-      } else {
-        subBuilder = extension.defaultInstance.newBuilderForType();
+      if (field.isRepeated()) {
+        tokenizer.consume("[");
+        collectionIndex = tokenizer.consumeInt32();
+        tokenizer.consume("]");
       }
-      final Message subMessage = subMessages.get(field.getFullName());
-      if (subMessage != null) {
-        subBuilder.mergeFrom(subMessage);
-      }
-
-      mergeField(tokenizer, extensionRegistry, subMessages, subBuilder);
 
-      value = subBuilder.buildPartial();
-      subMessages.put(field.getFullName(), (Message) value);
+      if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        // The rest of the path is a property of the sub-message.
+        tokenizer.consume(".");
+        node = node.child(field, extension, collectionIndex, nodes);
+        continue;
+      }
 
-    } else {
       tokenizer.consume("=");
 
+      Object value = null;
       switch (field.getType()) {
         case INT32:
         case SINT32:
@@ -913,18 +1151,341 @@ public class JavaPropsFormat extends AbstractCharBasedFormatter {
         case GROUP:
           throw new RuntimeException("Can't get here.");
       }
+
+      if (field.isRepeated()) {
+        node.element(field, collectionIndex, value);
+      } else {
+        builder.setField(field, value);
+      }
+      return;
     }
+  }
 
-    if (field.isRepeated()) {
-      int collectionCount = builder.getRepeatedFieldCount(field) - 1;
-      if (collectionCount < collectionIndex) {
-        // Need to initialize the list.  Apparently setRepeatedField does not initialize it :(
-        builder.addRepeatedField(field, value);
+  /**
+   * Merges properties as {@link #toProperties(Message)} makes them into {@code builder}, with
+   * no text in between. See {@link #merge(Map, ExtensionRegistry, Message.Builder)}.
+   */
+  public void merge(final Map<?, ?> properties, final Message.Builder builder)
+                    throws ParseException {
+    merge(properties, ExtensionRegistry.getEmptyRegistry(), builder);
+  }
+
+  /**
+   * Merges properties as {@link #toProperties(Message)} makes them into {@code builder}, in any
+   * order. Works with a {@link Properties} or a {@code Map<String, String>}; the defaults of a
+   * {@link Properties} are not included. Each key is followed segment by segment through a
+   * table of field names per message type, which is made once per type and cached, so keys are
+   * never tokenized and values never unquoted.
+   */
+  public void merge(final Map<?, ?> properties,
+                    final ExtensionRegistry extensionRegistry,
+                    final Message.Builder builder)
+                    throws ParseException {
+    final MessageNode root = new MessageNode(null, -1, builder);
+    final List<MessageNode> nodes = new ArrayList<MessageNode>();
+
+    for (final Map.Entry<?, ?> entry : properties.entrySet()) {
+      final String key = String.valueOf(entry.getKey());
+      try {
+        mergeProperty(key, String.valueOf(entry.getValue()), extensionRegistry, root, nodes);
+      } catch (IllegalArgumentException e) {
+        throw propertyException(key, e.getMessage());
+      } catch (InvalidEscapeSequenceException e) {
+        throw propertyException(key, e.getMessage());
+      }
+    }
+    build(root, nodes);
+  }
+
+  private void mergeProperty(final String key,
+                             final String text,
+                             final ExtensionRegistry extensionRegistry,
+                             MessageNode node,
+                             final List<MessageNode> nodes)
+                             throws ParseException, InvalidEscapeSequenceException {
+    final int length = key.length();
+    int pos = 0;
+    while (true) {
+      final Descriptors.Descriptor type = node.builder.getDescriptorForType();
+      Descriptors.FieldDescriptor field;
+      ExtensionRegistry.ExtensionInfo extension = null;
+
+      if (key.startsWith("[", pos)) {
+        // An extension.
+        final int end = key.indexOf(']', pos);
+        if (end < 0) {
+          throw propertyException(key, "Expected \"]\".");
+        }
+        final String name = key.substring(pos + 1, end);
+        extension = extensionRegistry.findExtensionByName(name);
+        if (extension == null) {
+          throw propertyException(key,
+            "Extension \"" + name + "\" not found in the ExtensionRegistry.");
+        } else if (extension.descriptor.getContainingType() != type) {
+          throw propertyException(key,
+            "Extension \"" + name + "\" does not extend message type \"" +
+            type.getFullName() + "\".");
+        }
+        field = extension.descriptor;
+        pos = end + 1;
       } else {
-        builder.setRepeatedField(field, collectionIndex, value);
+        int end = pos;
+        while (end < length && key.charAt(end) != '.' && key.charAt(end) != '[') {
+          end++;
+        }
+        final String name = key.substring(pos, end);
+        field = fieldNames(type).get(name);
+        if (field == null) {
+          throw propertyException(key,
+            "Message type \"" + type.getFullName() +
+            "\" has no field named \"" + name + "\".");
+        }
+        pos = end;
+      }
+
+      int collectionIndex = -1;
+
+      if (field.isRepeated()) {
+        final int start = pos + 1;
+        int end = start;
+        while (end < length && end - start < 10
+            && key.charAt(end) >= '0' && key.charAt(end) <= '9') {
+          end++;
+        }
+        if (!key.startsWith("[", pos) || end == start || !key.startsWith("]", end)) {
+          throw propertyException(key,
+            "Expected an index in [] after repeated field \"" + field.getName() + "\".");
+        }
+        collectionIndex = Integer.parseInt(key.substring(start, end));
+        pos = end + 1;
+      }
+
+      if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        // The rest of the key is a property of the sub-message.
+        if (!key.startsWith(".", pos)) {
+          throw propertyException(key,
+            "Expected \".\" after message field \"" + field.getName() + "\".");
+        }
+        pos++;
+        node = node.child(field, extension, collectionIndex, nodes);
+        continue;
+      }
+
+      if (pos != length) {
+        throw propertyException(key,
+          "Unexpected \"" + key.substring(pos) + "\" after field \"" + field.getName() + "\".");
+      }
+
+      final Object value = parsePropertyValue(field, text);
+      if (field.isRepeated()) {
+        node.element(field, collectionIndex, value);
+      } else {
+        node.builder.setField(field, value);
+      }
+      return;
+    }
+  }
+
+  /**
+   * Parses a value as {@link #toProperties(Message)} writes it. Integers may also be hex or
+   * octal and enums may be numbers, as in the text format.
+   */
+  private static Object parsePropertyValue(final Descriptors.FieldDescriptor field,
+                                           final String text)
+                                           throws InvalidEscapeSequenceException {
+    switch (field.getType()) {
+      case INT32:
+      case SINT32:
+      case SFIXED32:
+        return parseInt32(text);
+
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+        return parseInt64(text);
+
+      case UINT32:
+      case FIXED32:
+        return parseUInt32(text);
+
+      case UINT64:
+      case FIXED64:
+        return parseUInt64(text);
+
+      case FLOAT:
+        return parseFloat(text);
+
+      case DOUBLE:
+        return parseDouble(text);
+
+      case BOOL:
+        return parseBoolean(text);
+
+      case STRING:
+        return text;
+
+      case BYTES:
+        return unescapeBytes(text);
+
+      case ENUM:
+        final Descriptors.EnumDescriptor enumType = field.getEnumType();
+        final Descriptors.EnumValueDescriptor value = isDigits(text) || text.startsWith("-")
+            ? enumType.findValueByNumber(parseInt32(text))
+            : enumType.findValueByName(text);
+        if (value == null) {
+          throw new IllegalArgumentException(
+            "Enum type \"" + enumType.getFullName() + "\" has no value \"" + text + "\".");
+        }
+        return value;
+
+      default:
+        throw new RuntimeException("Can't get here.");
+    }
+  }
+
+  private static ParseException propertyException(final String key, final String description) {
+    return new ParseException("Property \"" + key + "\": " + description);
+  }
+
+  /**
+   * @return the fields of {@code type} by the names keys use for them, which for groups are
+   *         their type names
+   */
+  private Map<String, Descriptors.FieldDescriptor> fieldNames(final Descriptors.Descriptor type) {
+    Map<String, Descriptors.FieldDescriptor> names = fieldNames.get(type);
+    if (names == null) {
+      names = new HashMap<String, Descriptors.FieldDescriptor>();
+      for (final Descriptors.FieldDescriptor field : type.getFields()) {
+        if (field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+          names.put(field.getMessageType().getName(), field);
+        } else {
+          names.put(field.getName(), field);
+        }
       }
+      fieldNames.putIfAbsent(type, names);
+    }
+    return names;
+  }
+
+  /**
+   * Sets element {@code index} of {@code field}, or adds it if the list is not that long yet.
+   */
+  private static void setRepeatedField(final Message.Builder builder,
+                                       final Descriptors.FieldDescriptor field,
+                                       final int index,
+                                       final Object value) {
+    if (index < builder.getRepeatedFieldCount(field)) {
+      builder.setRepeatedField(field, index, value);
     } else {
-      builder.setField(field, value);
+      // Need to initialize the list.  Apparently setRepeatedField does not initialize it :(
+      builder.addRepeatedField(field, value);
+    }
+  }
+
+  /**
+   * A sub-message being merged, found by the field and index it is set at in its parent. Its
+   * own sub-messages are nodes too, so a path like {@code a[2].b.c} always leads to the same
+   * builder.
+   */
+  private static final class MessageNode {
+    final Descriptors.FieldDescriptor field;
+    final int index;
+    final Message.Builder builder;
+    // By field, and in a sorted map by index within repeated fields, which for fields that are
+    // not messages holds the values themselves.
+    final Map<Descriptors.FieldDescriptor, Object> children =
+        new LinkedHashMap<Descriptors.FieldDescriptor, Object>();
+    Message value;
+
+    MessageNode(final Descriptors.FieldDescriptor field, final int index,
+                final Message.Builder builder) {
+      this.field = field;
+      this.index = index;
+      this.builder = builder;
+    }
+
+    /**
+     * @return the node of the message at {@code field} (and {@code index}), created the first
+     *         time, starting from what the builder already has there
+     */
+    @SuppressWarnings("unchecked")
+    MessageNode child(final Descriptors.FieldDescriptor field,
+                      final ExtensionRegistry.ExtensionInfo extension,
+                      final int index,
+                      final List<MessageNode> nodes) {
+      Map<Integer, MessageNode> elements = null;
+      if (field.isRepeated()) {
+        elements = (Map<Integer, MessageNode>) children.get(field);
+        MessageNode child = elements == null ? null : elements.get(index);
+        if (child != null) {
+          return child;
+        }
+      } else {
+        MessageNode child = (MessageNode) children.get(field);
+        if (child != null) {
+          return child;
+        }
+      }
+
+      final Message.Builder subBuilder;
+      if (extension == null) {
+        subBuilder = builder.newBuilderForField(field);
+      } else {
+        subBuilder = extension.defaultInstance.newBuilderForType();
+      }
+      final MessageNode child = new MessageNode(field, index, subBuilder);
+      if (field.isRepeated()) {
+        if (index < builder.getRepeatedFieldCount(field)) {
+          subBuilder.mergeFrom((Message) builder.getRepeatedField(field, index));
+        }
+        if (elements == null) {
+          elements = new TreeMap<Integer, MessageNode>();
+          children.put(field, elements);
+        }
+        elements.put(index, child);
+      } else {
+        if (builder.hasField(field)) {
+          subBuilder.mergeFrom((Message) builder.getField(field));
+        }
+        children.put(field, child);
+      }
+      nodes.add(child);
+      return child;
+    }
+
+    /**
+     * Keeps {@code value} to be set at {@code index} of the repeated {@code field}, which is
+     * not a message, along with the other elements in the order of their indexes.
+     */
+    @SuppressWarnings("unchecked")
+    void element(final Descriptors.FieldDescriptor field, final int index, final Object value) {
+      Map<Integer, Object> elements = (Map<Integer, Object>) children.get(field);
+      if (elements == null) {
+        elements = new TreeMap<Integer, Object>();
+        children.put(field, elements);
+      }
+      elements.put(index, value);
+    }
+
+    /**
+     * Sets the built sub-messages in {@link #builder}, the elements of repeated fields in the
+     * order of their indexes.
+     */
+    @SuppressWarnings("unchecked")
+    void setChildren() {
+      for (final Map.Entry<Descriptors.FieldDescriptor, Object> child : children.entrySet()) {
+        if (child.getValue() instanceof MessageNode) {
+          final MessageNode node = (MessageNode) child.getValue();
+          builder.setField(node.field, node.value);
+        } else {
+          for (final Map.Entry<Integer, Object> element :
+               ((Map<Integer, Object>) child.getValue()).entrySet()) {
+            final Object value = element.getValue();
+            setRepeatedField(builder, child.getKey(), element.getKey(),
+                value instanceof MessageNode ? ((MessageNode) value).value : value);
+          }
+        }
+      }
     }
   }
 
@@ -30,15 +30,28 @@ package com.googlecode.protobuf.format;
 
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.nio.CharBuffer;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 
 import com.google.protobuf.ByteString;
@@ -51,6 +64,7 @@ import com.google.protobuf.Descriptors.EnumDescriptor;
 import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.googlecode.protobuf.format.bits.ByteSerializer;
+import com.googlecode.protobuf.format.util.BufferedCharSequence;
 import com.googlecode.protobuf.format.bits.DefaultByteSerializer;
 import com.googlecode.protobuf.format.util.TextUtils;
 
@@ -71,14 +85,140 @@ import static com.googlecode.protobuf.format.util.TextUtils.*;
  */
 public class JsonFormat extends AbstractCharBasedFormatter {
 
+    /**
+     * How deep objects may be nested in the input by default, see {@link
+     * Builder#setMaxDepth(int)}.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 100;
+
+    // A parallel print splits a field into about this many chunks per processor, so threads that
+    // finish early find more work, but keeps at least MIN_CHUNK_SIZE elements in a chunk.
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final int MIN_CHUNK_SIZE = 64;
+
     protected final ByteSerializer byteSerializer;
+    private final int maxDepth;
+    private final Executor printExecutor;
+    private final int parallelPrintThreshold;
+    private final ParallelMerge parallelMerge;
+
+    private final ConcurrentMap<Descriptor, MessagePlan> messagePlans =
+            new ConcurrentHashMap<Descriptor, MessagePlan>();
+    private final ConcurrentMap<FieldDescriptor, FieldPlan> extensionPlans =
+            new ConcurrentHashMap<FieldDescriptor, FieldPlan>();
 
     public JsonFormat(){
         this(new DefaultByteSerializer());
     }
 
+    /**
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public JsonFormat(Charset defaultCharset) {
+        this(newBuilder().setDefaultCharset(defaultCharset));
+    }
+
     public JsonFormat(ByteSerializer byteSerializer) {
         this.byteSerializer = byteSerializer;
+        this.maxDepth = DEFAULT_MAX_DEPTH;
+        this.printExecutor = null;
+        this.parallelPrintThreshold = Integer.MAX_VALUE;
+        this.parallelMerge = null;
+    }
+
+    protected JsonFormat(Builder builder) {
+        super(builder.defaultCharset);
+        this.byteSerializer = builder.byteSerializer;
+        this.maxDepth = builder.maxDepth;
+        this.printExecutor = builder.printExecutor;
+        this.parallelPrintThreshold = builder.parallelPrintThreshold;
+        this.parallelMerge = builder.mergeExecutor == null
+                ? null : new ParallelMerge(builder.mergeExecutor, builder.mergeBatchSize);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Collects the settings of a {@link JsonFormat}; the format itself cannot be changed once
+     * built, so it can be shared between threads.
+     */
+    public static class Builder {
+        private ByteSerializer byteSerializer = new DefaultByteSerializer();
+        private Charset defaultCharset = Charset.defaultCharset();
+        private int maxDepth = DEFAULT_MAX_DEPTH;
+        private Executor printExecutor;
+        private int parallelPrintThreshold = Integer.MAX_VALUE;
+        private Executor mergeExecutor;
+        private int mergeBatchSize;
+
+        protected Builder() {
+        }
+
+        /**
+         * How {@code bytes} fields are written and read, {@link DefaultByteSerializer} by default.
+         */
+        public Builder setByteSerializer(ByteSerializer byteSerializer) {
+            this.byteSerializer = byteSerializer;
+            return this;
+        }
+
+        /**
+         * The charset of streams when none is given, the platform charset by default.
+         */
+        public Builder setDefaultCharset(Charset defaultCharset) {
+            this.defaultCharset = defaultCharset;
+            return this;
+        }
+
+        /**
+         * How deep objects may be nested in the input, the outermost object being at depth 1;
+         * {@link #DEFAULT_MAX_DEPTH} by default. Deeper input fails with a {@link
+         * ParseException}. Objects and arrays in the values of unknown fields count too.
+         */
+        public Builder setMaxDepth(int maxDepth) {
+            if (maxDepth < 1) {
+                throw new IllegalArgumentException("maxDepth must be positive: " + maxDepth);
+            }
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        /**
+         * Prints repeated message fields of at least {@code threshold} elements in chunks on
+         * {@code executor}, e.g. a {@code ForkJoinPool}, and joins the chunks in order, so one
+         * huge message is printed on several cores. The output is the same as printing serially.
+         * Off by default; a {@code null} executor turns it off again.
+         */
+        public Builder setParallelPrint(Executor executor, int threshold) {
+            if (threshold < 1) {
+                throw new IllegalArgumentException("threshold must be positive: " + threshold);
+            }
+            this.printExecutor = executor;
+            this.parallelPrintThreshold = executor == null ? Integer.MAX_VALUE : threshold;
+            return this;
+        }
+
+        /**
+         * Parses the arrays of repeated message fields of the outermost object on {@code
+         * executor}: the elements are only scanned for their bounds, parsed in batches of {@code
+         * batchSize} on the executor, and added in order. An array of up to {@code batchSize}
+         * elements is parsed on the calling thread. Off by default; a {@code null} executor turns
+         * it off again.
+         */
+        public Builder setParallelMerge(Executor executor, int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+            }
+            this.mergeExecutor = executor;
+            this.mergeBatchSize = batchSize;
+            return this;
+        }
+
+        public JsonFormat build() {
+            return new JsonFormat(this);
+        }
     }
 
     /**
@@ -104,81 +244,369 @@ public class JsonFormat extends AbstractCharBasedFormatter {
     }
 
 
+    /**
+     * Outputs the fields of {@code message}, using the {@link MessagePlan} compiled for its type.
+     */
     protected void print(Message message, JsonGenerator generator) throws IOException {
-
-        for (Iterator<Map.Entry<FieldDescriptor, Object>> iter = message.getAllFields().entrySet().iterator(); iter.hasNext();) {
-            Map.Entry<FieldDescriptor, Object> field = iter.next();
-            printField(field.getKey(), field.getValue(), generator);
-            if (iter.hasNext()) {
-                generator.print(",");
+        MessagePlan plan = getMessagePlan(message.getDescriptorForType());
+        boolean first = true;
+        if (plan.extendable) {
+            // Extensions are only known to the message itself, let it list the set fields.
+            for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
+                if (!first) {
+                    generator.print(",");
+                }
+                first = false;
+                printField(getFieldPlan(field.getKey()), field.getValue(), generator);
+            }
+        } else {
+            for (FieldPlan field : plan.fields) {
+                Object value;
+                if (field.repeated) {
+                    value = message.getField(field.descriptor);
+                    if (((List<?>) value).isEmpty()) {
+                        continue;
+                    }
+                } else if (message.hasField(field.descriptor)) {
+                    value = message.getField(field.descriptor);
+                } else {
+                    continue;
+                }
+                if (!first) {
+                    generator.print(",");
+                }
+                first = false;
+                printField(field, value, generator);
             }
         }
-        if (message.getUnknownFields().asMap().size() > 0)
+        UnknownFieldSet unknownFields = message.getUnknownFields();
+        if (unknownFields.asMap().size() > 0)
             generator.print(", ");
-        printUnknownFields(message.getUnknownFields(), generator);
+        printUnknownFields(unknownFields, generator);
     }
 
     public void printField(FieldDescriptor field, Object value, JsonGenerator generator) throws IOException {
 
-        printSingleField(field, value, generator);
+        printField(getFieldPlan(field), value, generator);
     }
 
-    private void printSingleField(FieldDescriptor field,
-                                         Object value,
-                                         JsonGenerator generator) throws IOException {
+    /**
+     * Returns the name {@code field} is printed with, before quoting.
+     */
+    protected String getFieldName(FieldDescriptor field) {
         if (field.isExtension()) {
-            generator.print("\"");
             // We special-case MessageSet elements for compatibility with proto1.
             if (field.getContainingType().getOptions().getMessageSetWireFormat()
                 && (field.getType() == FieldDescriptor.Type.MESSAGE) && (field.isOptional())
                 // object equality
                 && (field.getExtensionScope() == field.getMessageType())) {
-                generator.print(field.getMessageType().getFullName());
+                return field.getMessageType().getFullName();
             } else {
-                generator.print(field.getFullName());
+                return field.getFullName();
             }
-            generator.print("\"");
+        } else if (field.getType() == FieldDescriptor.Type.GROUP) {
+            // Groups must be serialized with their original capitalization.
+            return field.getMessageType().getName();
         } else {
-            generator.print("\"");
-            if (field.getType() == FieldDescriptor.Type.GROUP) {
-                // Groups must be serialized with their original capitalization.
-                generator.print(field.getMessageType().getName());
-            } else {
-                generator.print(field.getName());
-            }
-            generator.print("\"");
+            return field.getName();
         }
+    }
 
-        // Done with the name, on to the value
-
-        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-            generator.print(": ");
+    private void printField(FieldPlan field, Object value, JsonGenerator generator) throws IOException {
+        generator.print(field.prefix);
+        if (field.message) {
             generator.indent();
-        } else {
-            generator.print(": ");
         }
 
-
-        if (field.isRepeated()) {
+        if (field.repeated) {
             // Repeated field. Print each element.
+            List<?> values = (List<?>) value;
             generator.print("[");
-            for (Iterator<?> iter = ((List<?>) value).iterator(); iter.hasNext();) {
-                printFieldValue(field, iter.next(), generator);
-                if (iter.hasNext()) {
-                    generator.print(",");
+            if (field.message && values.size() >= parallelPrintThreshold) {
+                printInParallel(field.type, values, generator);
+            } else {
+                for (Iterator<?> iter = values.iterator(); iter.hasNext();) {
+                    printFieldValue(field.type, iter.next(), generator);
+                    if (iter.hasNext()) {
+                        generator.print(",");
+                    }
                 }
             }
             generator.print("]");
         } else {
-            printFieldValue(field, value, generator);
-            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+            printFieldValue(field.type, value, generator);
+            if (field.message) {
                 generator.outdent();
             }
         }
     }
 
-    private void printFieldValue(FieldDescriptor field, Object value, JsonGenerator generator) throws IOException {
-        switch (field.getType()) {
+    /**
+     * Prints the elements of a large repeated message field in chunks, each into its own buffer.
+     * The chunks are {@link FutureTask}s run by whichever thread gets to them first: workers on
+     * the print executor, and this thread, which goes through them in order and appends each
+     * one's text. It only waits for chunks another thread is already printing, so a saturated
+     * executor or nested parallel fields slow printing down but cannot deadlock it.
+     */
+    private void printInParallel(final FieldDescriptor.Type type, final List<?> values, JsonGenerator generator)
+            throws IOException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        int chunkCount = Math.max(1, Math.min(workers * CHUNKS_PER_WORKER, values.size() / MIN_CHUNK_SIZE));
+        final List<FutureTask<CharSequence>> chunks = new ArrayList<FutureTask<CharSequence>>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            final int from = (int) ((long) values.size() * i / chunkCount);
+            final int to = (int) ((long) values.size() * (i + 1) / chunkCount);
+            chunks.add(new FutureTask<CharSequence>(new Callable<CharSequence>() {
+                public CharSequence call() throws IOException {
+                    StringBuilder text = new StringBuilder();
+                    JsonGenerator chunk = new JsonGenerator(text);
+                    chunk.atStartOfLine = false;
+                    for (int j = from; j < to; j++) {
+                        if (j > from) {
+                            chunk.print(",");
+                        }
+                        printFieldValue(type, values.get(j), chunk);
+                    }
+                    return text;
+                }
+            }));
+        }
+
+        Runnable worker = new Runnable() {
+            public void run() {
+                for (FutureTask<CharSequence> chunk : chunks) {
+                    chunk.run();
+                }
+            }
+        };
+        try {
+            for (int i = 1; i < Math.min(workers, chunkCount); i++) {
+                printExecutor.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            // This thread prints what no worker takes.
+        }
+
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                FutureTask<CharSequence> chunk = chunks.get(i);
+                chunk.run();
+                if (i > 0) {
+                    generator.print(",");
+                }
+                generator.print(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while printing " + values.size() + " elements");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // Chunks nobody started are not printed after a failure.
+            for (FutureTask<CharSequence> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    private MessagePlan getMessagePlan(Descriptor type) {
+        MessagePlan plan = messagePlans.get(type);
+        if (plan == null) {
+            plan = new MessagePlan(this, type);
+            MessagePlan existing = messagePlans.putIfAbsent(type, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    private FieldPlan getFieldPlan(FieldDescriptor field) {
+        if (!field.isExtension()) {
+            return getMessagePlan(field.getContainingType()).byIndex[field.getIndex()];
+        }
+        FieldPlan plan = extensionPlans.get(field);
+        if (plan == null) {
+            plan = new FieldPlan(this, field);
+            FieldPlan existing = extensionPlans.putIfAbsent(field, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Everything {@code print} and {@code merge} need to know about a message type, worked out
+     * once per {@link Descriptor}: the fields in the order {@link Message#getAllFields()} would
+     * return them, so printing does not have to build that map, a {@link FieldPlan} for each of
+     * them, and the {@link FieldNames} a field may be referred to by in the input. Types with
+     * extension ranges still go through {@code getAllFields()}, only the message can tell which
+     * extensions are set.
+     */
+    private static final class MessagePlan {
+        final boolean extendable;
+        // Ordered by field number.
+        final FieldPlan[] fields;
+        // Indexed by FieldDescriptor.getIndex().
+        final FieldPlan[] byIndex;
+        final FieldNames names;
+
+        MessagePlan(JsonFormat format, Descriptor type) {
+            List<FieldDescriptor> descriptors = type.getFields();
+            extendable = type.toProto().getExtensionRangeCount() > 0;
+            byIndex = new FieldPlan[descriptors.size()];
+            for (FieldDescriptor descriptor : descriptors) {
+                byIndex[descriptor.getIndex()] = new FieldPlan(format, descriptor);
+            }
+            fields = byIndex.clone();
+            Arrays.sort(fields, new Comparator<FieldPlan>() {
+                public int compare(FieldPlan a, FieldPlan b) {
+                    return a.descriptor.getNumber() - b.descriptor.getNumber();
+                }
+            });
+            names = new FieldNames(descriptors);
+        }
+    }
+
+    /**
+     * The names {@code mergeField} accepts for the fields of one message type, in an open
+     * addressing table that can be probed with a range of characters straight from the input:
+     * <ul>
+     * <li>the field name,</li>
+     * <li>for groups, the type name instead (as it appears in the .proto file),</li>
+     * <li>the field number, which marks the value as an unknown field, if it passes {@link
+     * TextUtils#isDigits(String)}.</li>
+     * </ul>
+     * Anything else, such as extension names or numbers with leading zeros, is not in the table
+     * and is left to the slower lookups.
+     */
+    private static final class FieldNames {
+        private final FieldName[] table;
+
+        FieldNames(List<FieldDescriptor> fields) {
+            int capacity = 16;
+            while (capacity < fields.size() * 4) {
+                capacity <<= 1;
+            }
+            table = new FieldName[capacity];
+            // Plain field names win over a group type name that happens to be spelled the same.
+            for (FieldDescriptor field : fields) {
+                if (field.getType() != FieldDescriptor.Type.GROUP) {
+                    add(field.getName(), field, false);
+                }
+            }
+            for (FieldDescriptor field : fields) {
+                if (field.getType() == FieldDescriptor.Type.GROUP) {
+                    // Explicitly specify US locale so that this code does not break when
+                    // executing in Turkey.
+                    String typeName = field.getMessageType().getName();
+                    if (typeName.toLowerCase(Locale.US).equals(field.getName())) {
+                        add(typeName, field, false);
+                    }
+                }
+            }
+            // Only the numbers the TextUtils.isDigits() check in mergeField lets through.
+            for (FieldDescriptor field : fields) {
+                String number = Integer.toString(field.getNumber());
+                if (TextUtils.isDigits(number)) {
+                    add(number, field, true);
+                }
+            }
+        }
+
+        private void add(String name, FieldDescriptor field, boolean unknown) {
+            int hash = name.hashCode();
+            int mask = table.length - 1;
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                if (table[i] == null) {
+                    table[i] = new FieldName(name, hash, field, unknown);
+                    return;
+                } else if (table[i].name.equals(name)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the entry for the characters {@code [start, end)} of {@code text}, or null
+         */
+        FieldName find(CharSequence text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            int length = end - start;
+            int mask = table.length - 1;
+            for (int i = spread(hash) & mask; table[i] != null; i = (i + 1) & mask) {
+                FieldName entry = table[i];
+                if (entry.hash == hash && entry.name.length() == length && entry.matches(text, start)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    private static final class FieldName {
+        final String name;
+        final int hash;
+        final FieldDescriptor field;
+        // Referred to by number, as unknown fields are printed.
+        final boolean unknown;
+
+        FieldName(String name, int hash, FieldDescriptor field, boolean unknown) {
+            this.name = name;
+            this.hash = hash;
+            this.field = field;
+            this.unknown = unknown;
+        }
+
+        boolean matches(CharSequence text, int start) {
+            for (int i = 0; i < name.length(); i++) {
+                if (text.charAt(start + i) != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The per-field part of a {@link MessagePlan}: the quoted name and everything about the
+     * field's type that decides how values are written.
+     */
+    private static final class FieldPlan {
+        final FieldDescriptor descriptor;
+        final FieldDescriptor.Type type;
+        final boolean repeated;
+        final boolean message;
+        // The quoted name followed by ": ".
+        final String prefix;
+
+        FieldPlan(JsonFormat format, FieldDescriptor descriptor) {
+            this.descriptor = descriptor;
+            this.type = descriptor.getType();
+            this.repeated = descriptor.isRepeated();
+            this.message = descriptor.getJavaType() == FieldDescriptor.JavaType.MESSAGE;
+            this.prefix = "\"" + format.getFieldName(descriptor) + "\": ";
+        }
+    }
+
+    private void printFieldValue(FieldDescriptor.Type type, Object value, JsonGenerator generator) throws IOException {
+        switch (type) {
             case INT32:
             case INT64:
             case SINT32:
@@ -204,7 +632,7 @@ public class JsonFormat extends AbstractCharBasedFormatter {
 
             case STRING:
                 generator.print("\"");
-                generator.print(escapeText((String) value));
+                generator.printEscaped((String) value);
                 generator.print("\"");
                 break;
 
@@ -323,23 +751,39 @@ public class JsonFormat extends AbstractCharBasedFormatter {
 
             for (int i = 0; i < size; i++) {
                 if (text.charAt(i) == '\n') {
-                    write(text.subSequence(pos, size), i - pos + 1);
+                    write(text, pos, i + 1);
                     pos = i + 1;
                     atStartOfLine = true;
                 }
             }
-            write(text.subSequence(pos, size), size - pos);
+            write(text, pos, size);
+        }
+
+        /**
+         * Print {@code text} escaped as the contents of a JSON string. The escaped text never
+         * contains a line break, so it is written straight to the output.
+         */
+        public void printEscaped(CharSequence text) throws IOException {
+            if (atStartOfLine) {
+                atStartOfLine = false;
+                output.append(indent);
+            }
+            escapeText(text, output);
         }
 
-        private void write(CharSequence data, int size) throws IOException {
-            if (size == 0) {
+        private void write(CharSequence text, int start, int end) throws IOException {
+            if (start == end) {
                 return;
             }
             if (atStartOfLine) {
                 atStartOfLine = false;
                 output.append(indent);
             }
-            output.append(data);
+            if (start == 0 && end == text.length()) {
+                output.append(text);
+            } else {
+                output.append(text, start, end);
+            }
         }
     }
 
@@ -347,61 +791,45 @@ public class JsonFormat extends AbstractCharBasedFormatter {
     // Parsing
 
     /**
-     * Represents a stream of tokens parsed from a {@code String}.
+     * Represents a stream of tokens parsed from a {@code CharSequence}.
      * <p>
      * <p>
-     * The Java standard library provides many classes that you might think would be useful for
-     * implementing this, but aren't. For example:
-     * <p>
+     * This is a hand-written, single-pass lexer. It recognizes the same tokens as the regular
+     * expressions it replaces:
      * <ul>
-     * <li>{@code java.io.StreamTokenizer}: This almost does what we want -- or, at least, something
-     * that would get us close to what we want -- except for one fatal flaw: It automatically
-     * un-escapes strings using Java escape sequences, which do not include all the escape sequences
-     * we need to support (e.g. '\x').
-     * <li>{@code java.util.Scanner}: This seems like a great way at least to parse regular
-     * expressions out of a stream (so we wouldn't have to load the entire input into a single
-     * string before parsing). Sadly, {@code Scanner} requires that tokens be delimited with some
-     * delimiter. Thus, although the text "foo:" should parse to two tokens ("foo" and ":"), {@code
-     * Scanner} would recognize it only as a single token. Furthermore, {@code Scanner} provides no
-     * way to inspect the contents of delimiters, making it impossible to keep track of line and
-     * column numbers.
+     * <li>an identifier: {@code [a-zA-Z_][0-9a-zA-Z_+-]*}</li>
+     * <li>a number: {@code [.]?[0-9+-][0-9a-zA-Z_.+-]*}</li>
+     * <li>a double- or single-quoted string, which ends at the closing quote or at the end of the
+     * line</li>
+     * <li>any other single character</li>
      * </ul>
+     * Whitespace and {@code #} comments running to the end of the line are skipped between tokens.
+     * <p>
      * <p>
+     * The current token is only described by its start and end offsets into the text; a {@code
+     * String} is created only when a caller asks for one. Line and column numbers are not tracked
+     * while scanning, they are computed from the offsets when a {@link ParseException} is built.
      * <p>
-     * Luckily, Java's regular expression support does manage to be useful to us. (Barely: We need
-     * {@code Matcher.usePattern()}, which is new in Java 1.5.) So, we can use that, at least.
-     * Unfortunately, this implies that we need to have the entire input in one contiguous string.
+     * The text is pulled through a {@link BufferedCharSequence}, so only the previous and current
+     * tokens have to stay in memory; parsing from a {@link Readable} does not buffer the whole
+     * document.
      */
     protected static class Tokenizer {
 
         private final ByteSerializer byteSerializer;
 
-        private final CharSequence text;
-        private final Matcher matcher;
-        private String currentToken;
+        private final BufferedCharSequence text;
+
+        // The character range [tokenStart, tokenEnd) of the current token. The range is empty at
+        // the end of the input.
+        private int tokenStart = 0;
+        private int tokenEnd = 0;
 
-        // The character index within this.text at which the current token begins.
-        private int pos = 0;
-
-        // The line and column numbers of the current token.
-        private int line = 0;
-        private int column = 0;
-
-        // The line and column numbers of the previous token (allows throwing
-        // errors *after* consuming).
-        private int previousLine = 0;
-        private int previousColumn = 0;
-
-        // We use possesive quantifiers (*+ and ++) because otherwise the Java
-        // regex matcher has stack overflows on large inputs.
-        private static final Pattern WHITESPACE =
-          Pattern.compile("(\\s|(#.*$))++", Pattern.MULTILINE);
-        private static final Pattern TOKEN = Pattern.compile(
-          "[a-zA-Z_][0-9a-zA-Z_+-]*+|" +                // an identifier
-          "[.]?[0-9+-][0-9a-zA-Z_.+-]*+|" +             // a number
-          "\"([^\"\n\\\\]|\\\\.)*+(\"|\\\\?$)|" +       // a double-quoted string
-          "\'([^\'\n\\\\]|\\\\.)*+(\'|\\\\?$)",         // a single-quoted string
-          Pattern.MULTILINE);
+        // The start of the previous token (allows throwing errors *after* consuming).
+        private int previousTokenStart = 0;
+
+        // Lazily created value of the current token, see currentToken().
+        private String currentToken;
 
         private static final Pattern DOUBLE_INFINITY = Pattern.compile(
           "-?inf(inity)?",
@@ -417,10 +845,15 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * Construct a tokenizer that parses tokens from the given text.
          */
         public Tokenizer(ByteSerializer byteSerializer, CharSequence text) {
+            this(byteSerializer, new BufferedCharSequence(text));
+        }
+
+        /**
+         * Construct a tokenizer that pulls tokens from the given buffered input.
+         */
+        public Tokenizer(ByteSerializer byteSerializer, BufferedCharSequence text) {
             this.byteSerializer = byteSerializer;
             this.text = text;
-            matcher = WHITESPACE.matcher(text);
-            skipWhitespace();
             nextToken();
         }
 
@@ -428,54 +861,164 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * Are we at the end of the input?
          */
         public boolean atEnd() {
-            return currentToken.length() == 0;
+            return tokenStart == tokenEnd;
         }
 
         /**
          * Advance to the next token.
          */
         public void nextToken() {
-            previousLine = line;
-            previousColumn = column;
-
-            // Advance the line counter to the current position.
-            while (pos < matcher.regionStart()) {
-                if (text.charAt(pos) == '\n') {
-                    ++line;
-                    column = 0;
+            previousTokenStart = tokenStart;
+            currentToken = null;
+            text.release(previousTokenStart);
+
+            int pos = skipWhitespace(tokenEnd);
+            tokenStart = pos;
+            if (!text.has(pos)) {
+                // EOF
+                tokenEnd = pos;
+                return;
+            }
+
+            char c = text.charAt(pos);
+            if (isIdentifierStart(c)) {
+                pos++;
+                while (text.has(pos) && isIdentifierPart(text.charAt(pos))) {
+                    pos++;
+                }
+            } else if (isNumberStart(c) || (c == '.' && text.has(pos + 1) && isNumberStart(text.charAt(pos + 1)))) {
+                pos += (c == '.') ? 2 : 1;
+                while (text.has(pos) && isNumberPart(text.charAt(pos))) {
+                    pos++;
+                }
+            } else if (c == '"' || c == '\'') {
+                pos = scanQuoted(pos, c);
+            } else {
+                // Take one character.
+                pos++;
+            }
+            tokenEnd = pos;
+        }
+
+        /**
+         * Returns the position of the first character at or after {@code pos} which is neither
+         * whitespace nor part of a comment.
+         */
+        private int skipWhitespace(int pos) {
+            while (text.has(pos)) {
+                char c = text.charAt(pos);
+                if (c == '#') {
+                    while (text.has(pos) && !isLineTerminator(text.charAt(pos))) {
+                        pos++;
+                    }
+                } else if (c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B') {
+                    pos++;
                 } else {
-                    ++column;
+                    break;
                 }
-                ++pos;
             }
+            return pos;
+        }
 
-            // Match the next token.
-            if (matcher.regionStart() == matcher.regionEnd()) {
-                // EOF
-                currentToken = "";
-            } else {
-                matcher.usePattern(TOKEN);
-                if (matcher.lookingAt()) {
-                    currentToken = matcher.group();
-                    matcher.region(matcher.end(), matcher.regionEnd());
+        /**
+         * Returns the end of the quoted string starting at {@code pos}. The string ends after the
+         * closing quote, or at the end of the line when the closing quote is missing.
+         */
+        private int scanQuoted(int start, char quote) {
+            int pos = start + 1;
+            while (text.has(pos)) {
+                char c = text.charAt(pos);
+                if (c == quote) {
+                    return pos + 1;
+                } else if (c == '\\') {
+                    if (text.has(pos + 1) && !isLineTerminator(text.charAt(pos + 1))) {
+                        pos += 2;
+                    } else {
+                        // A trailing backslash stays part of the (unterminated) string.
+                        return pos + 1;
+                    }
+                } else if (c == '\n') {
+                    // An unterminated string ends with its line, unless the line ends with "\r\n"
+                    // in which case only the quote itself is taken (as the regex used to).
+                    return (text.charAt(pos - 1) == '\r') ? start + 1 : pos;
                 } else {
-                    // Take one character.
-                    currentToken = String.valueOf(text.charAt(pos));
-                    matcher.region(pos + 1, matcher.regionEnd());
+                    pos++;
                 }
+            }
+            return pos;
+        }
+
+        private static boolean isIdentifierStart(char c) {
+            return (('a' <= c) && (c <= 'z')) || (('A' <= c) && (c <= 'Z')) || (c == '_');
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            return isIdentifierStart(c) || (('0' <= c) && (c <= '9')) || (c == '+') || (c == '-');
+        }
 
-                skipWhitespace();
+        private static boolean isNumberStart(char c) {
+            return (('0' <= c) && (c <= '9')) || (c == '+') || (c == '-');
+        }
+
+        private static boolean isNumberPart(char c) {
+            return isIdentifierPart(c) || (c == '.');
+        }
+
+        private static boolean isLineTerminator(char c) {
+            return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+
+        /**
+         * Consumes the object starting at the current token without parsing it: only brackets
+         * outside of strings and comments are matched up.
+         *
+         * @return the text of the object, to be parsed by a tokenizer of its own
+         */
+        public String consumeObjectText() throws ParseException {
+            if (!tokenEquals("{")) {
+                throw parseException("Expected \"{\".");
             }
+            int pos = tokenStart;
+            int depth = 0;
+            do {
+                if (!text.has(pos)) {
+                    throw parseException("Expected \"}\".");
+                }
+                char c = text.charAt(pos);
+                if (c == '"' || c == '\'') {
+                    pos = scanQuoted(pos, c);
+                    continue;
+                } else if (c == '#') {
+                    pos = skipWhitespace(pos);
+                    continue;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+            String object = text.subSequence(tokenStart, pos).toString();
+            tokenEnd = pos;
+            nextToken();
+            return object;
         }
 
         /**
-         * Skip over any whitespace so that the matcher region starts at the next token.
+         * Returns {@code true} if the current token is exactly {@code token}, without creating a
+         * {@code String} for the current token.
          */
-        private void skipWhitespace() {
-            matcher.usePattern(WHITESPACE);
-            if (matcher.lookingAt()) {
-                matcher.region(matcher.end(), matcher.regionEnd());
+        private boolean tokenEquals(String token) {
+            int size = token.length();
+            if (tokenEnd - tokenStart != size) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (text.charAt(tokenStart + i) != token.charAt(i)) {
+                    return false;
+                }
             }
+            return true;
         }
 
         /**
@@ -483,7 +1026,7 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * Otherwise, return {@code false} without doing anything.
          */
         public boolean tryConsume(String token) {
-            if (currentToken.equals(token)) {
+            if (tokenEquals(token)) {
                 nextToken();
                 return true;
             } else {
@@ -505,18 +1048,26 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * Returns {@code true} if the next token is an float, but does not consume it.
          */
         public boolean lookingAtFloat() {
-            return lookingAtInteger() && currentToken.contains(".");
+            if (!lookingAtInteger()) {
+                return false;
+            }
+            for (int i = tokenStart; i < tokenEnd; i++) {
+                if (text.charAt(i) == '.') {
+                    return true;
+                }
+            }
+            return false;
         }
 
         /**
          * Returns {@code true} if the next token is an integer, but does not consume it.
          */
         public boolean lookingAtInteger() {
-            if (currentToken.length() == 0) {
+            if (atEnd()) {
                 return false;
             }
 
-            char c = currentToken.charAt(0);
+            char c = text.charAt(tokenStart);
             return (('0' <= c) && (c <= '9')) || (c == '-') || (c == '+');
         }
 
@@ -524,38 +1075,65 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * Returns {@code true} if the next token is a boolean (true/false), but does not consume it.
          */
         public boolean lookingAtBoolean() {
-            if (currentToken.length() == 0) {
-                return false;
-            }
-
-            return ("true".equals(currentToken) || "false".equals(currentToken));
+            return tokenEquals("true") || tokenEquals("false");
         }
 
         /**
          * @return currentToken to which the Tokenizer is pointing.
          */
         public String currentToken() {
+            if (currentToken == null) {
+                currentToken = text.subSequence(tokenStart, tokenEnd).toString();
+            }
             return currentToken;
         }
 
+        /**
+         * If the next token is a plain or double-quoted name that {@code names} knows, consume it
+         * and return its entry. Otherwise return null and leave the token to {@link
+         * #consumeIdentifier()}. Unlike that method, no {@code String} is created for the token.
+         */
+        private FieldName consumeFieldName(FieldNames names) {
+            int start = tokenStart;
+            int end = tokenEnd;
+            if (end - start >= 2 && text.charAt(start) == '"' && text.charAt(end - 1) == '"') {
+                start++;
+                end--;
+            }
+            FieldName name = names.find(text, start, end);
+            if (name != null) {
+                nextToken();
+            }
+            return name;
+        }
+
         /**
          * If the next token is an identifier, consume it and return its value. Otherwise, throw a
          * {@link ParseException}.
          */
         public String consumeIdentifier() throws ParseException {
-            for (int i = 0; i < currentToken.length(); i++) {
-                char c = currentToken.charAt(i);
+            int quotes = 0;
+            for (int i = tokenStart; i < tokenEnd; i++) {
+                char c = text.charAt(i);
                 if ((('a' <= c) && (c <= 'z')) || (('A' <= c) && (c <= 'Z'))
-                    || (('0' <= c) && (c <= '9')) || (c == '_') || (c == '.') || (c == '"')) {
+                    || (('0' <= c) && (c <= '9')) || (c == '_') || (c == '.')) {
                     // OK
+                } else if (c == '"') {
+                    quotes++;
                 } else {
                     throw parseException("Expected identifier. -" + c);
                 }
             }
 
-            String result = currentToken;
             // Need to clean-up result to remove quotes of any kind
-            result = result.replaceAll("\"|'", "");
+            String result;
+            if (quotes == 0) {
+                result = currentToken();
+            } else if (quotes == 2 && text.charAt(tokenStart) == '"' && text.charAt(tokenEnd - 1) == '"') {
+                result = text.subSequence(tokenStart + 1, tokenEnd - 1).toString();
+            } else {
+                result = currentToken().replace("\"", "");
+            }
             nextToken();
             return result;
         }
@@ -565,8 +1143,15 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * throw a {@link ParseException}.
          */
         public int consumeInt32() throws ParseException {
+            if (lookingAtSimpleDecimal(true)) {
+                long result = simpleDecimalValue();
+                if ((result <= Integer.MAX_VALUE) && (result >= Integer.MIN_VALUE)) {
+                    nextToken();
+                    return (int) result;
+                }
+            }
             try {
-                int result = parseInt32(currentToken);
+                int result = parseInt32(currentToken());
                 nextToken();
                 return result;
             } catch (NumberFormatException e) {
@@ -579,8 +1164,15 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * Otherwise, throw a {@link ParseException}.
          */
         public int consumeUInt32() throws ParseException {
+            if (lookingAtSimpleDecimal(false)) {
+                long result = simpleDecimalValue();
+                if (result < (1L << 32)) {
+                    nextToken();
+                    return (int) result;
+                }
+            }
             try {
-                int result = parseUInt32(currentToken);
+                int result = parseUInt32(currentToken());
                 nextToken();
                 return result;
             } catch (NumberFormatException e) {
@@ -593,8 +1185,13 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * throw a {@link ParseException}.
          */
         public long consumeInt64() throws ParseException {
+            if (lookingAtSimpleDecimal(true)) {
+                long result = simpleDecimalValue();
+                nextToken();
+                return result;
+            }
             try {
-                long result = parseInt64(currentToken);
+                long result = parseInt64(currentToken());
                 nextToken();
                 return result;
             } catch (NumberFormatException e) {
@@ -607,8 +1204,13 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * Otherwise, throw a {@link ParseException}.
          */
         public long consumeUInt64() throws ParseException {
+            if (lookingAtSimpleDecimal(false)) {
+                long result = simpleDecimalValue();
+                nextToken();
+                return result;
+            }
             try {
-                long result = parseUInt64(currentToken);
+                long result = parseUInt64(currentToken());
                 nextToken();
                 return result;
             } catch (NumberFormatException e) {
@@ -616,6 +1218,61 @@ public class JsonFormat extends AbstractCharBasedFormatter {
             }
         }
 
+        /**
+         * Returns {@code true} if the current token is a plain decimal integer ({@code -?[1-9][0-9]*}
+         * or {@code 0}, the sign only if {@code signed}) short enough to never overflow a {@code long}. Everything else (octal, hex,
+         * quoted numbers, ...) is left to {@link JsonFormat#parseInteger}.
+         */
+        private boolean lookingAtSimpleDecimal(boolean signed) {
+            int pos = tokenStart;
+            if (signed && pos < tokenEnd && text.charAt(pos) == '-') {
+                pos++;
+            }
+            int digits = tokenEnd - pos;
+            if (digits == 0 || digits > 18) {
+                return false;
+            }
+            if (digits > 1 && text.charAt(pos) == '0') {
+                return false;
+            }
+            for (int i = pos; i < tokenEnd; i++) {
+                char c = text.charAt(i);
+                if ((c < '0') || (c > '9')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the value of the current token, which must satisfy
+         * {@link #lookingAtSimpleDecimal(boolean)}.
+         */
+        private long simpleDecimalValue() {
+            int pos = tokenStart;
+            boolean negative = text.charAt(pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            long result = 0;
+            for (; pos < tokenEnd; pos++) {
+                result = result * 10 + (text.charAt(pos) - '0');
+            }
+            return negative ? -result : result;
+        }
+
+        /**
+         * Returns {@code true} if the current token starts with {@code c} (ignoring case), possibly
+         * after a minus sign. Used to avoid running the infinity/nan patterns on ordinary numbers.
+         */
+        private boolean startsWithIgnoreCase(char c) {
+            int pos = tokenStart;
+            if (pos < tokenEnd && text.charAt(pos) == '-') {
+                pos++;
+            }
+            return (pos < tokenEnd) && (Character.toLowerCase(text.charAt(pos)) == c);
+        }
+
         /**
          * If the next token is a double, consume it and return its value. Otherwise, throw a
          * {@link ParseException}.
@@ -623,17 +1280,17 @@ public class JsonFormat extends AbstractCharBasedFormatter {
         public double consumeDouble() throws ParseException {
             // We need to parse infinity and nan separately because
             // Double.parseDouble() does not accept "inf", "infinity", or "nan".
-            if (DOUBLE_INFINITY.matcher(currentToken).matches()) {
-                boolean negative = currentToken.startsWith("-");
+            if (startsWithIgnoreCase('i') && DOUBLE_INFINITY.matcher(currentToken()).matches()) {
+                boolean negative = text.charAt(tokenStart) == '-';
                 nextToken();
                 return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
             }
-            if (currentToken.equalsIgnoreCase("nan")) {
+            if (tokenEqualsIgnoreCase("nan")) {
                 nextToken();
                 return Double.NaN;
             }
             try {
-                double result = Double.parseDouble(prepareNumberFromString(currentToken));
+                double result = Double.parseDouble(prepareNumberFromString(currentToken()));
                 nextToken();
                 return result;
             } catch (NumberFormatException e) {
@@ -648,17 +1305,17 @@ public class JsonFormat extends AbstractCharBasedFormatter {
         public float consumeFloat() throws ParseException {
             // We need to parse infinity and nan separately because
             // Float.parseFloat() does not accept "inf", "infinity", or "nan".
-            if (FLOAT_INFINITY.matcher(currentToken).matches()) {
-                boolean negative = currentToken.startsWith("-");
+            if (startsWithIgnoreCase('i') && FLOAT_INFINITY.matcher(currentToken()).matches()) {
+                boolean negative = text.charAt(tokenStart) == '-';
                 nextToken();
                 return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
             }
-            if (FLOAT_NAN.matcher(currentToken).matches()) {
+            if (startsWithIgnoreCase('n') && FLOAT_NAN.matcher(currentToken()).matches()) {
                 nextToken();
                 return Float.NaN;
             }
             try {
-                float result = Float.parseFloat(prepareNumberFromString(currentToken));
+                float result = Float.parseFloat(prepareNumberFromString(currentToken()));
                 nextToken();
                 return result;
             } catch (NumberFormatException e) {
@@ -666,15 +1323,28 @@ public class JsonFormat extends AbstractCharBasedFormatter {
             }
         }
 
+        private boolean tokenEqualsIgnoreCase(String token) {
+            int size = token.length();
+            if (tokenEnd - tokenStart != size) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (Character.toLowerCase(text.charAt(tokenStart + i)) != token.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * If the next token is a boolean, consume it and return its value. Otherwise, throw a
          * {@link ParseException}.
          */
         public boolean consumeBoolean() throws ParseException {
-            if (currentToken.equals("true")) {
+            if (tokenEquals("true")) {
                 nextToken();
                 return true;
-            } else if (currentToken.equals("false")) {
+            } else if (tokenEquals("false")) {
                 nextToken();
                 return false;
             } else {
@@ -687,10 +1357,10 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * throw a {@link ParseException}.
          */
         public String consumeString() throws ParseException {
-          char quote = currentToken.length() > 0 ? currentToken.charAt(0) : '\0';
+          char quote = atEnd() ? '\0' : text.charAt(tokenStart);
           if ((quote != '\"') && (quote != '\'')) {
               try {
-                String result = currentToken.replace(',', '.');
+                String result = currentToken().replace(',', '.');
                 Double.parseDouble(result);
                 nextToken();
                 return result;
@@ -699,14 +1369,10 @@ public class JsonFormat extends AbstractCharBasedFormatter {
               }
           }
 
-          if ((currentToken.length() < 2)
-              || (currentToken.charAt(currentToken.length() - 1) != quote)) {
-              throw parseException("String missing ending quote.");
-          }
+          checkQuotedToken(quote);
 
           try {
-              String escaped = currentToken.substring(1, currentToken.length() - 1);
-              String result = unescapeText(escaped);
+              String result = unescapeText(text, tokenStart + 1, tokenEnd - 1);
               nextToken();
               return result;
           } catch (InvalidEscapeSequence e) {
@@ -720,18 +1386,15 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * {@link ParseException}.
          */
         public ByteString consumeByteString() throws ParseException {
-            char quote = currentToken.length() > 0 ? currentToken.charAt(0) : '\0';
+            char quote = atEnd() ? '\0' : text.charAt(tokenStart);
             if ((quote != '\"') && (quote != '\'')) {
                 throw parseException("Expected string.");
             }
 
-            if ((currentToken.length() < 2)
-                || (currentToken.charAt(currentToken.length() - 1) != quote)) {
-                throw parseException("String missing ending quote.");
-            }
+            checkQuotedToken(quote);
 
             try {
-                String escaped = currentToken.substring(1, currentToken.length() - 1);
+                String escaped = text.subSequence(tokenStart + 1, tokenEnd - 1).toString();
                 ByteString result = byteSerializer.unescapeBytes(escaped);
                 nextToken();
                 return result;
@@ -740,13 +1403,18 @@ public class JsonFormat extends AbstractCharBasedFormatter {
             }
         }
 
+        private void checkQuotedToken(char quote) throws ParseException {
+            if ((tokenEnd - tokenStart < 2) || (text.charAt(tokenEnd - 1) != quote)) {
+                throw parseException("String missing ending quote.");
+            }
+        }
+
         /**
          * Returns a {@link ParseException} with the current line and column numbers in the
          * description, suitable for throwing.
          */
         public ParseException parseException(String description) {
-            // Note: People generally prefer one-based line and column numbers.
-            return new ParseException((line + 1) + ":" + (column + 1) + ": " + description);
+            return parseExceptionAt(tokenStart, description);
         }
 
         /**
@@ -754,9 +1422,14 @@ public class JsonFormat extends AbstractCharBasedFormatter {
          * in the description, suitable for throwing.
          */
         public ParseException parseExceptionPreviousToken(String description) {
+            return parseExceptionAt(previousTokenStart, description);
+        }
+
+        private ParseException parseExceptionAt(int offset, String description) {
+            int line = text.line(offset);
+            int column = text.column(offset);
             // Note: People generally prefer one-based line and column numbers.
-            return new ParseException((previousLine + 1) + ":" + (previousColumn + 1) + ": "
-                                      + description);
+            return new ParseException((line + 1) + ":" + (column + 1) + ": " + description);
         }
 
         /**
@@ -786,6 +1459,13 @@ public class JsonFormat extends AbstractCharBasedFormatter {
 		public ParseException(String message) {
             super(message);
         }
+
+        /**
+         * @param cause what stopped the parsing, e.g. an {@link InterruptedIOException}
+         */
+        public ParseException(String message, Throwable cause) {
+            super(message, cause);
+        }
     }
 
 
@@ -796,156 +1476,479 @@ public class JsonFormat extends AbstractCharBasedFormatter {
     public void merge(CharSequence input,
                              ExtensionRegistry extensionRegistry,
                              Message.Builder builder) throws ParseException {
-        Tokenizer tokenizer = new Tokenizer(byteSerializer, input);
+        merge(createTokenizer(new BufferedCharSequence(input)), extensionRegistry, builder);
+    }
 
+    /**
+     * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
+     * The input is tokenized as it is read, it is never buffered as a whole.
+     */
+    @Override
+    public void merge(Readable input,
+                      ExtensionRegistry extensionRegistry,
+                      Message.Builder builder) throws IOException {
+        try {
+            merge(createTokenizer(new BufferedCharSequence(input)), extensionRegistry, builder);
+        } catch (BufferedCharSequence.ReadException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Creates the {@link Tokenizer} used by {@code merge}.
+     */
+    protected Tokenizer createTokenizer(BufferedCharSequence input) {
+        return new Tokenizer(byteSerializer, input);
+    }
+
+    /**
+     * Parse a single message from {@code tokenizer} and merge it into {@code builder}.
+     */
+    protected void merge(Tokenizer tokenizer,
+                         ExtensionRegistry extensionRegistry,
+                         Message.Builder builder) throws ParseException {
+        mergeObject(tokenizer, extensionRegistry, builder);
+        // Test to make sure the tokenizer has reached the end of the stream.
+        if (!tokenizer.atEnd()) {
+            throw tokenizer.parseException("Expecting the end of the stream, but there seems to be more data!  Check the input for a valid JSON format.");
+        }
+    }
+
+    /**
+     * Parse one object from {@code tokenizer} and merge it into {@code builder}, leaving whatever
+     * follows the object to the caller.
+     */
+    protected void mergeObject(Tokenizer tokenizer,
+                               ExtensionRegistry extensionRegistry,
+                               Message.Builder builder) throws ParseException {
         // Based on the state machine @ http://json.org/
 
         tokenizer.consume("{"); // Needs to happen when the object starts.
         while (!tokenizer.tryConsume("}")) { // Continue till the object is done
             mergeField(tokenizer, extensionRegistry, builder);
         }
-        // Test to make sure the tokenizer has reached the end of the stream.
-        if (!tokenizer.atEnd()) {
-            throw tokenizer.parseException("Expecting the end of the stream, but there seems to be more data!  Check the input for a valid JSON format.");
-        }
+    }
+
+    /**
+     * Creates a {@link MessageWriter} that writes newline-delimited JSON: one object per line,
+     * all through the same encoder.
+     */
+    @Override
+    public MessageWriter newMessageWriter(OutputStream output, Charset cs) throws IOException {
+        final Writer writer = createWriter(output, cs);
+        return new MessageWriter() {
+            @Override
+            public void write(Message message) throws IOException {
+                print(message, writer);
+                writer.write('\n');
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writer.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Reads {@code input} with {@link #newMessageReader(InputStream, Charset, ExtensionRegistry)},
+     * which parses the messages straight off the stream, so {@code maxMessageSize} does not apply.
+     */
+    @Override
+    public MessageReader newMessageReader(InputStream input, Charset cs,
+                                          ExtensionRegistry extensionRegistry, int maxMessageSize) throws IOException {
+        return newMessageReader(input, cs, extensionRegistry);
+    }
+
+    /**
+     * Creates a {@link MessageReader} for a sequence of JSON objects, separated by newlines or
+     * any other whitespace. One tokenizer runs over the whole stream.
+     */
+    @Override
+    public MessageReader newMessageReader(final InputStream input, Charset cs,
+                                          final ExtensionRegistry extensionRegistry) throws IOException {
+        final BufferedCharSequence text = new BufferedCharSequence(new InputStreamReader(input, cs));
+        return new MessageReader() {
+            // Created on the first merge, the tokenizer reads ahead as soon as it exists.
+            private Tokenizer tokenizer;
+
+            @Override
+            public boolean merge(Message.Builder builder) throws IOException {
+                try {
+                    if (tokenizer == null) {
+                        tokenizer = createTokenizer(text);
+                    }
+                    if (tokenizer.atEnd()) {
+                        return false;
+                    }
+                    mergeObject(tokenizer, extensionRegistry, builder);
+                    return true;
+                } catch (BufferedCharSequence.ReadException e) {
+                    throw e.getCause();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        };
     }
 
 
     /**
      * Parse a single field from {@code tokenizer} and merge it into {@code builder}. If a ',' is
-     * detected after the field ends, the next field will be parsed automatically
+     * detected after the field ends, the next field will be parsed automatically.
+     * <p>
+     * Nested messages are parsed with an explicit stack of {@link ObjectFrame}s rather than by
+     * recursion, so neither wide nor deep input can overflow the Java stack. Input nested deeper
+     * than {@link Builder#setMaxDepth(int) maxDepth} is rejected with a {@link ParseException}.
      */
     protected void mergeField(Tokenizer tokenizer,
                                    ExtensionRegistry extensionRegistry,
                                    Message.Builder builder) throws ParseException {
-        FieldDescriptor field;
-        Descriptor type = builder.getDescriptorForType();
-        ExtensionRegistry.ExtensionInfo extension = null;
-        boolean unknown = false;
-
-        String name = tokenizer.consumeIdentifier();
-        field = type.findFieldByName(name);
+        mergeField(tokenizer, extensionRegistry, new ObjectFrame(builder, 1));
+    }
 
-        // Group names are expected to be capitalized as they appear in the
-        // .proto file, which actually matches their type names, not their field
-        // names.
-        if (field == null) {
-            // Explicitly specify US locale so that this code does not break when
-            // executing in Turkey.
-            String lowerName = name.toLowerCase(Locale.US);
-            field = type.findFieldByName(lowerName);
-            // If the case-insensitive match worked but the field is NOT a group,
-            if ((field != null) && (field.getType() != FieldDescriptor.Type.GROUP)) {
-                field = null;
+    /**
+     * Parses a field of the object of {@code frame}, which has no parent, and the fields after
+     * it.
+     */
+    private void mergeField(Tokenizer tokenizer,
+                            ExtensionRegistry extensionRegistry,
+                            ObjectFrame frame) throws ParseException {
+        int state = FIELD;
+        while (true) {
+            switch (state) {
+                case FIELD:
+                    if (!startField(tokenizer, extensionRegistry, frame)) {
+                        state = AFTER_FIELD;
+                    } else if (parallelMerge != null && frame.depth == 1 && frame.array && !frame.unknown
+                            && frame.field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                        mergeInParallel(tokenizer, extensionRegistry, frame);
+                        state = AFTER_FIELD;
+                    } else {
+                        state = VALUE;
+                    }
+                    break;
+                case VALUE:
+                    if (frame.array && tokenizer.tryConsume("]")) {
+                        state = AFTER_FIELD;
+                        break;
+                    } else if (frame.array && tokenizer.atEnd()) {
+                        throw tokenizer.parseException("Expected \"]\".");
+                    }
+                    Message.Builder subBuilder = handleValue(tokenizer, frame);
+                    if (subBuilder != null) {
+                        frame = new ObjectFrame(frame, subBuilder);
+                        state = OBJECT;
+                    } else {
+                        state = afterValue(tokenizer, frame);
+                    }
+                    break;
+                case AFTER_FIELD:
+                    if (tokenizer.tryConsume(",")) {
+                        // Continue with the next field
+                        state = FIELD;
+                    } else if (frame.parent == null) {
+                        return;
+                    } else {
+                        state = OBJECT;
+                    }
+                    break;
+                case OBJECT:
+                    if (tokenizer.tryConsume("}")) {
+                        Message value = frame.builder.build();
+                        frame = frame.parent;
+                        frame.setValue(value);
+                        state = afterValue(tokenizer, frame);
+                    } else if (tokenizer.atEnd()) {
+                        throw tokenizer.parseException("Expected \"}\".");
+                    } else {
+                        state = FIELD;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown state " + state);
             }
         }
-        // Again, special-case group names as described above.
-        if ((field != null) && (field.getType() == FieldDescriptor.Type.GROUP)
-            && !field.getMessageType().getName().equals(name)) {
-            field = null;
-        }
+    }
+
+    // The states of mergeField.
+    // Expecting the name of a field of the current object.
+    private static final int FIELD = 0;
+    // Expecting (the next) value of the current field.
+    private static final int VALUE = 1;
+    // The current field has all its values, expecting a ',' or the end of the object.
+    private static final int AFTER_FIELD = 2;
+    // Inside a nested object, expecting a field or the end of the object.
+    private static final int OBJECT = 3;
 
-        // Last try to lookup by field-index if 'name' is numeric,
-        // which indicates a possible unknown field
-        if (field == null && TextUtils.isDigits(name)) {
-            field = type.findFieldByNumber(Integer.parseInt(name));
-            unknown = true;
+    /**
+     * Parses a field name and the ':' and '[' after it, setting up {@code frame} to receive its
+     * values.
+     *
+     * @return false if the field is unknown, in which case its value has been skipped already
+     */
+    private boolean startField(Tokenizer tokenizer,
+                               ExtensionRegistry extensionRegistry,
+                               ObjectFrame frame) throws ParseException {
+        if (tokenizer.atEnd()) {
+            // Truncated input, the empty token would be taken for an unknown field forever.
+            throw tokenizer.parseException("Expected \"}\".");
         }
+        Message.Builder builder = frame.builder;
+        FieldDescriptor field = null;
+        Descriptor type = builder.getDescriptorForType();
+        ExtensionRegistry.ExtensionInfo extension = null;
+        boolean unknown = false;
+        FieldNames names = getMessagePlan(type).names;
+
+        // Field names, group type names and field numbers are all resolved by one probe of
+        // the type's FieldNames. Without extensions to look for, that can be done before the
+        // name is even turned into a String.
+        FieldName known = null;
+        if (extensionRegistry == ExtensionRegistry.getEmptyRegistry()) {
+            known = tokenizer.consumeFieldName(names);
+        }
+        if (known == null) {
+            String name = tokenizer.consumeIdentifier();
+            known = names.find(name, 0, name.length());
+
+            // Last try to lookup by field-index if 'name' is numeric,
+            // which indicates a possible unknown field
+            if (known == null && TextUtils.isDigits(name)) {
+                field = type.findFieldByNumber(Integer.parseInt(name));
+                unknown = true;
+            }
 
-        // Finally, look for extensions
-        extension = extensionRegistry.findExtensionByName(name);
-        if (extension != null) {
-            if (extension.descriptor.getContainingType() != type) {
-              throw tokenizer.parseExceptionPreviousToken("Extension \"" + name
-                                                          + "\" does not extend message type \""
-                                                          + type.getFullName() + "\".");
+            // Finally, look for extensions
+            extension = extensionRegistry.findExtensionByName(name);
+            if (extension != null) {
+                if (extension.descriptor.getContainingType() != type) {
+                  throw tokenizer.parseExceptionPreviousToken("Extension \"" + name
+                                                              + "\" does not extend message type \""
+                                                              + type.getFullName() + "\".");
+                }
+                known = null;
+                field = extension.descriptor;
+                unknown = false;
             }
-            field = extension.descriptor;
+        }
+        if (known != null) {
+            field = known.field;
+            unknown = known.unknown;
         }
 
         // Disabled throwing exception if field not found, since it could be a different version.
         if (field == null) {
-            handleMissingField(tokenizer, extensionRegistry, builder);
+            handleMissingField(tokenizer, frame.depth);
             //throw tokenizer.parseExceptionPreviousToken("Message type \"" + type.getFullName()
             //                                            + "\" has no field named \"" + name
             //                                            + "\".");
+            return false;
         }
 
-        if (field != null) {
-            tokenizer.consume(":");
-            boolean array = tokenizer.tryConsume("[");
+        tokenizer.consume(":");
+        frame.field = field;
+        frame.extension = extension;
+        frame.unknown = unknown;
+        frame.array = tokenizer.tryConsume("[");
+        return true;
+    }
 
-            if (array) {
-                while (!tokenizer.tryConsume("]")) {
-                    handleValue(tokenizer, extensionRegistry, builder, field, extension, unknown);
-                    tokenizer.tryConsume(",");
+    /**
+     * Merges the elements of the array of {@code frame}'s current field, a repeated message field
+     * of the outermost object, with {@link #parallelMerge}. The elements are scanned with {@link
+     * Tokenizer#consumeObjectText()} and each one parsed by its own tokenizer.
+     */
+    private void mergeInParallel(Tokenizer tokenizer,
+                                 final ExtensionRegistry extensionRegistry,
+                                 ObjectFrame frame) throws ParseException {
+        final FieldDescriptor field = frame.field;
+        final Message prototype = frame.extension == null
+                ? frame.builder.newBuilderForField(field).getDefaultInstanceForType()
+                : frame.extension.defaultInstance;
+        checkDepth(tokenizer, frame.depth);
+
+        ParallelMerge.Elements elements = parallelMerge.start(frame.builder, field);
+        boolean done = false;
+        try {
+            List<String> batch = new ArrayList<String>();
+            int index = 0;
+            while (!tokenizer.tryConsume("]")) {
+                if (tokenizer.atEnd()) {
+                    throw tokenizer.parseException("Expected \"]\".");
                 }
-            } else {
-                handleValue(tokenizer, extensionRegistry, builder, field, extension, unknown);
+                batch.add(tokenizer.consumeObjectText());
+                tokenizer.tryConsume(",");
+                if (batch.size() == parallelMerge.batchSize()) {
+                    elements.add(parseBatch(batch, index, field, prototype, extensionRegistry));
+                    index += batch.size();
+                    batch = new ArrayList<String>();
+                }
+            }
+            elements.finish(batch.isEmpty() ? null : parseBatch(batch, index, field, prototype, extensionRegistry));
+            done = true;
+        } catch (ParseException e) {
+            throw e;
+        } catch (IOException e) {
+            // E.g. interrupted while waiting for a batch; ParallelMerge restores the interrupt
+            // where it happened.
+            throw new ParseException(e.getMessage(), e);
+        } finally {
+            if (!done) {
+                elements.cancel();
             }
         }
+    }
 
-        if (tokenizer.tryConsume(",")) {
-            // Continue with the next field
-            mergeField(tokenizer, extensionRegistry, builder);
+    private ParallelMerge.Batch parseBatch(final List<String> objects, final int firstIndex,
+                                           final FieldDescriptor field, final Message prototype,
+                                           final ExtensionRegistry extensionRegistry) {
+        return new ParallelMerge.Batch() {
+            public List<Message> parse() throws ParseException {
+                List<Message> messages = new ArrayList<Message>(objects.size());
+                for (String object : objects) {
+                    Message.Builder builder = prototype.newBuilderForType();
+                    try {
+                        Tokenizer tokenizer = createTokenizer(new BufferedCharSequence(object));
+                        tokenizer.consume("{");
+                        // The elements are nested in the outermost object.
+                        ObjectFrame frame = new ObjectFrame(builder, 2);
+                        while (!tokenizer.tryConsume("}")) {
+                            mergeField(tokenizer, extensionRegistry, frame);
+                        }
+                    } catch (ParseException e) {
+                        throw new ParseException("Element " + (firstIndex + messages.size()) + " of "
+                                + field.getFullName() + ": " + e.getMessage());
+                    }
+                    messages.add(builder.build());
+                }
+                return messages;
+            }
+        };
+    }
+
+    /**
+     * @return the state after a value of {@code frame}'s current field
+     */
+    private static int afterValue(Tokenizer tokenizer, ObjectFrame frame) {
+        if (frame.array) {
+            tokenizer.tryConsume(",");
+            return VALUE;
         }
+        return AFTER_FIELD;
     }
 
-    private void handleMissingField(Tokenizer tokenizer,
-                                           ExtensionRegistry extensionRegistry,
-                                           Message.Builder builder) throws ParseException {
+    /**
+     * Skips the value of an unknown field, which may itself be an object or array of any shape.
+     *
+     * @param depth the nesting depth of the object the field belongs to
+     */
+    private void handleMissingField(Tokenizer tokenizer, int depth) throws ParseException {
+        // The closing tokens of the objects and arrays being skipped, innermost last.
+        StringBuilder closing = new StringBuilder();
         tokenizer.tryConsume(":");
-        if ("{".equals(tokenizer.currentToken())) {
-            // Message structure
-            tokenizer.consume("{");
-            do {
+        while (true) {
+            if ("{".equals(tokenizer.currentToken())) {
+                // Message structure
+                checkDepth(tokenizer, depth + closing.length());
+                tokenizer.consume("{");
+                closing.append('}');
                 tokenizer.consumeIdentifier();
-                handleMissingField(tokenizer, extensionRegistry, builder);
-            } while (tokenizer.tryConsume(","));
-            tokenizer.consume("}");
-        } else if ("[".equals(tokenizer.currentToken())) {
-            // Collection
-            tokenizer.consume("[");
-            do {
-                handleMissingField(tokenizer, extensionRegistry, builder);
-            } while (tokenizer.tryConsume(","));
-            tokenizer.consume("]");
-        } else { //if (!",".equals(tokenizer.currentToken)){
-            // Primitive value
-            if ("null".equals(tokenizer.currentToken())) {
-                tokenizer.consume("null");
-            } else if (tokenizer.lookingAtFloat()) {
-                tokenizer.consumeFloat();
-            } else if (tokenizer.lookingAtInteger()) {
-                tokenizer.consumeInt64();
-            } else if (tokenizer.lookingAtBoolean()) {
-                tokenizer.consumeBoolean();
-            } else if (tokenizer.currentToken().startsWith("'") || tokenizer.currentToken().startsWith("\"")) {
-                tokenizer.consumeString();
+                tokenizer.tryConsume(":");
+                continue;
+            } else if ("[".equals(tokenizer.currentToken())) {
+                // Collection
+                checkDepth(tokenizer, depth + closing.length());
+                tokenizer.consume("[");
+                closing.append(']');
+                tokenizer.tryConsume(":");
+                continue;
+            } else { //if (!",".equals(tokenizer.currentToken)){
+                // Primitive value
+                if ("null".equals(tokenizer.currentToken())) {
+                    tokenizer.consume("null");
+                } else if (tokenizer.lookingAtFloat()) {
+                    tokenizer.consumeFloat();
+                } else if (tokenizer.lookingAtInteger()) {
+                    tokenizer.consumeInt64();
+                } else if (tokenizer.lookingAtBoolean()) {
+                    tokenizer.consumeBoolean();
+                } else if (tokenizer.currentToken().startsWith("'") || tokenizer.currentToken().startsWith("\"")) {
+                    tokenizer.consumeString();
+                }
+            }
+
+            // The value is done; close every object and array that has no more elements.
+            while (closing.length() > 0) {
+                int last = closing.length() - 1;
+                if (tokenizer.tryConsume(",")) {
+                    if (closing.charAt(last) == '}') {
+                        tokenizer.consumeIdentifier();
+                    }
+                    tokenizer.tryConsume(":");
+                    break;
+                }
+                tokenizer.consume(String.valueOf(closing.charAt(last)));
+                closing.setLength(last);
+            }
+            if (closing.length() == 0) {
+                return;
             }
         }
     }
 
-    private void handleValue(Tokenizer tokenizer,
-                                    ExtensionRegistry extensionRegistry,
-                                    Message.Builder builder,
-                                    FieldDescriptor field,
-                                    ExtensionRegistry.ExtensionInfo extension,
-                                    boolean unknown) throws ParseException {
+    private void checkDepth(Tokenizer tokenizer, int depth) throws ParseException {
+        if (depth >= maxDepth) {
+            throw tokenizer.parseException("Input nested deeper than " + maxDepth + " levels.");
+        }
+    }
 
-        Object value = null;
-        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-            value = handleObject(tokenizer, extensionRegistry, builder, field, extension, unknown);
+    /**
+     * Handles the next value of {@code frame}'s current field. Primitive values are set right
+     * away; for a nested message the opening '{' is consumed and its builder returned, to be
+     * filled by the caller.
+     *
+     * @return the builder of the nested message, or null if the value has been set already
+     */
+    private Message.Builder handleValue(Tokenizer tokenizer, ObjectFrame frame) throws ParseException {
+        FieldDescriptor field = frame.field;
+        if (field.getJavaType() != FieldDescriptor.JavaType.MESSAGE) {
+            Object value = handlePrimitive(tokenizer, field);
+            if (value != null) {
+                frame.setValue(value);
+            }
+            return null;
+        }
+
+        Message.Builder subBuilder;
+        if (frame.extension == null) {
+            subBuilder = frame.builder.newBuilderForField(field);
         } else {
-            value = handlePrimitive(tokenizer, field);
+            subBuilder = frame.extension.defaultInstance.newBuilderForType();
         }
-        if (value != null) {
-            if (field.isRepeated()) {
-                builder.addRepeatedField(field, value);
-            } else {
-                builder.setField(field, value);
+
+        if (frame.unknown) {
+            ByteString data = tokenizer.consumeByteString();
+            try {
+                subBuilder.mergeFrom(data);
+                frame.setValue(subBuilder.build());
+                return null;
+            } catch (InvalidProtocolBufferException e) {
+                throw tokenizer.parseException("Failed to build " + field.getFullName() + " from " + data);
             }
         }
+
+        checkDepth(tokenizer, frame.depth);
+        tokenizer.consume("{");
+        return subBuilder;
     }
 
     private Object handlePrimitive(Tokenizer tokenizer, FieldDescriptor field) throws ParseException {
@@ -1030,45 +2033,41 @@ public class JsonFormat extends AbstractCharBasedFormatter {
         return value;
     }
 
-    private Object handleObject(Tokenizer tokenizer,
-                                       ExtensionRegistry extensionRegistry,
-                                       Message.Builder builder,
-                                       FieldDescriptor field,
-                                       ExtensionRegistry.ExtensionInfo extension,
-                                       boolean unknown) throws ParseException {
+    /**
+     * An object being parsed by {@code mergeField}: the builder its fields go to, and the field
+     * whose values are being read. The parent frame receives the built message once the object
+     * ends.
+     */
+    private static final class ObjectFrame {
+        final ObjectFrame parent;
+        final Message.Builder builder;
+        // 1 for the outermost object.
+        final int depth;
 
-        Message.Builder subBuilder;
-        if (extension == null) {
-            subBuilder = builder.newBuilderForField(field);
-        } else {
-            subBuilder = extension.defaultInstance.newBuilderForType();
+        FieldDescriptor field;
+        ExtensionRegistry.ExtensionInfo extension;
+        boolean unknown;
+        boolean array;
+
+        ObjectFrame(ObjectFrame parent, Message.Builder builder) {
+            this.parent = parent;
+            this.builder = builder;
+            this.depth = parent.depth + 1;
         }
 
-        if (unknown) {
-            ByteString data = tokenizer.consumeByteString();
-            try {
-                subBuilder.mergeFrom(data);
-                return subBuilder.build();
-            } catch (InvalidProtocolBufferException e) {
-                throw tokenizer.parseException("Failed to build " + field.getFullName() + " from " + data);
-            }
+        ObjectFrame(Message.Builder builder, int depth) {
+            this.parent = null;
+            this.builder = builder;
+            this.depth = depth;
         }
 
-        tokenizer.consume("{");
-        String endToken = "}";
-
-        while (!tokenizer.tryConsume(endToken)) {
-            if (tokenizer.atEnd()) {
-                throw tokenizer.parseException("Expected \"" + endToken + "\".");
-            }
-            mergeField(tokenizer, extensionRegistry, subBuilder);
-            if (tokenizer.tryConsume(",")) {
-                // there are more fields in the object, so continue
-                continue;
+        void setValue(Object value) {
+            if (field.isRepeated()) {
+                builder.addRepeatedField(field, value);
+            } else {
+                builder.setField(field, value);
             }
         }
-
-        return subBuilder.build();
     }
 
     // =================================================================
@@ -1090,77 +2089,118 @@ public class JsonFormat extends AbstractCharBasedFormatter {
      */
     static String escapeText(String input) {
         StringBuilder builder = new StringBuilder(input.length());
-        CharacterIterator iter = new StringCharacterIterator(input);
-        for(char c = iter.first(); c != CharacterIterator.DONE; c = iter.next()) {
-            switch(c) {
-                case '\b':
-                  builder.append("\\b");
-                  break;
-                case '\f':
-                  builder.append("\\f");
-                  break;
-                case '\n':
-                  builder.append("\\n");
-                  break;
-                case '\r':
-                  builder.append("\\r");
-                  break;
-                case '\t':
-                  builder.append("\\t");
-                  break;
-                case '\\':
-                  builder.append("\\\\");
-                  break;
-	            case '/':
-		            builder.append("\\/");
-		            break;
-                case '"':
-                  builder.append("\\\"");
-                  break;
-                default:
-                  // Check for other control characters
-                  if(c >= 0x0000 && c <= 0x001F) {
-                      appendEscapedUnicode(builder, c);
-                  } else if(Character.isHighSurrogate(c)) {
-                      // Encode the surrogate pair using 2 six-character sequence (\\uXXXX\\uXXXX)
-                      appendEscapedUnicode(builder, c);
-                      c = iter.next();
-                      if(c == CharacterIterator.DONE) throw new IllegalArgumentException("invalid unicode string: unexpected high surrogate pair value without corresponding low value.");
-                      appendEscapedUnicode(builder, c);
-                  } else {
-                      // Anything else can be printed as-is
-                      builder.append(c);
-                  }
-                  break;
-            }
+        try {
+            escapeText(input, builder);
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to a StringBuilder threw an IOException (should never happen).",
+                                       e);
         }
         return builder.toString();
     }
 
-    static void appendEscapedUnicode(StringBuilder builder, char ch) {
-      String prefix = "\\u";
-      if(ch < 0x10) {
-        prefix = "\\u000";
-      } else if(ch < 0x100) {
-        prefix = "\\u00";
-      } else if(ch < 0x1000) {
-        prefix = "\\u0";
-      }
-      builder.append(prefix).append(Integer.toHexString(ch));
+    // The escape sequence of each ASCII character, null if it is printed as-is.
+    private static final String[] ESCAPES = new String[128];
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        for (char c = 0; c <= 0x1F; c++) {
+            StringBuilder escape = new StringBuilder(6);
+            try {
+                appendEscapedUnicode(escape, c);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            ESCAPES[c] = escape.toString();
+        }
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\\'] = "\\\\";
+        ESCAPES['/'] = "\\/";
+        ESCAPES['"'] = "\\\"";
+    }
+
+    /**
+     * Writes {@code input} to {@code output} escaped like {@link #escapeText(String)} does, without
+     * building the escaped text first. Runs of characters that need no escaping are appended as one
+     * range.
+     */
+    static void escapeText(CharSequence input, Appendable output) throws IOException {
+        int length = input.length();
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            if (c < 128) {
+                String escape = ESCAPES[c];
+                if (escape == null) {
+                    continue;
+                }
+                if (i > run) {
+                    output.append(input, run, i);
+                }
+                output.append(escape);
+            } else if (Character.isHighSurrogate(c)) {
+                if (i > run) {
+                    output.append(input, run, i);
+                }
+                // Encode the surrogate pair using 2 six-character sequence (\\uXXXX\\uXXXX)
+                appendEscapedUnicode(output, c);
+                if (++i == length) {
+                    throw new IllegalArgumentException("invalid unicode string: unexpected high surrogate pair value without corresponding low value.");
+                }
+                appendEscapedUnicode(output, input.charAt(i));
+            } else {
+                // Anything else can be printed as-is
+                continue;
+            }
+            run = i + 1;
+        }
+        if (run == 0) {
+            output.append(input);
+        } else if (run < length) {
+            output.append(input, run, length);
+        }
+    }
+
+    static void appendEscapedUnicode(Appendable output, char ch) throws IOException {
+        output.append('\\').append('u')
+              .append(HEX_DIGITS[(ch >> 12) & 0xF])
+              .append(HEX_DIGITS[(ch >> 8) & 0xF])
+              .append(HEX_DIGITS[(ch >> 4) & 0xF])
+              .append(HEX_DIGITS[ch & 0xF]);
     }
 
     /**
      * Un-escape a text string as escaped using {@link #escapeText(String)}.
      */
     static String unescapeText(String input) throws InvalidEscapeSequence {
-      StringBuilder builder = new StringBuilder();
-      char[] array = input.toCharArray();
-      for(int i = 0; i < array.length; i++) {
-        char c = array[i];
+      return unescapeText(input, 0, input.length());
+    }
+
+    /**
+     * Un-escape the characters {@code [start, end)} of {@code input} as escaped using
+     * {@link #escapeText(String)}.
+     */
+    static String unescapeText(CharSequence input, int start, int end) throws InvalidEscapeSequence {
+      int i = start;
+      while (i < end && input.charAt(i) != '\\') {
+        i++;
+      }
+      if (i == end) {
+        // Nothing to un-escape
+        return input.subSequence(start, end).toString();
+      }
+      StringBuilder builder = new StringBuilder(end - start);
+      builder.append(input, start, i);
+      for(; i < end; i++) {
+        char c = input.charAt(i);
         if(c == '\\') {
-          if(i + 1 < array.length) {
+          if(i + 1 < end) {
             ++i;
-            c = array[i];
+            c = input.charAt(i);
             switch(c) {
             case 'b':
               builder.append('\b');
@@ -1191,9 +2231,9 @@ public class JsonFormat extends AbstractCharBasedFormatter {
               break;
             case 'u':
               // read the next 4 chars
-              if(i + 4 < array.length) {
+              if(i + 4 < end) {
                 ++i;
-                int code = Integer.parseInt(new String(array, i, 4), 16);
+                int code = Integer.parseInt(input.subSequence(i, i + 4).toString(), 16);
                 // this cast is safe because we know how many chars we read
                 builder.append((char)code);
                 i += 3;
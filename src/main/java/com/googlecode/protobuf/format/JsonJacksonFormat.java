@@ -30,17 +30,22 @@ package com.googlecode.protobuf.format;
 
 import static com.googlecode.protobuf.format.util.TextUtils.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.EnumDescriptor;
@@ -50,6 +55,7 @@ import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.UnknownFieldSet;
+import com.googlecode.protobuf.format.util.ByteBufferInputStream;
 import com.googlecode.protobuf.format.util.TextUtils;
 
 /**
@@ -65,13 +71,90 @@ import com.googlecode.protobuf.format.util.TextUtils;
  *         <p>
  * @author wenboz@google.com Wenbo Zhu
  * @author kenton@google.com Kenton Varda
+ * <p>
+ * Parsers and generators come from a {@link JsonFactory}, which can be handed in to tune Jackson
+ * (see {@link JsonFactory.Feature}, {@link JsonParser.Feature} and {@link JsonGenerator.Feature}).
+ * The factory is where Jackson pools its resources: the symbol table behind {@link
+ * JsonFactory.Feature#CANONICALIZE_FIELD_NAMES} lives in it, and its buffers are recycled per
+ * thread (see {@link JsonFactory.Feature#USE_THREAD_LOCAL_FOR_BUFFER_RECYCLING}). So share one
+ * factory, configured before first use, between formats rather than creating one per format.
+ * A format created without one gets a factory of its own, so configuring what {@link
+ * #getJsonFactory()} returns changes that format only.
  */
 public class JsonJacksonFormat extends ProtobufFormatter {
-    private static JsonFactory jsonFactory = new JsonFactory();
     private static final long MAX_UINT_VALUE = (((long) Integer.MAX_VALUE) << 1) + 1;
     private static final BigInteger MAX_ULONG_VALUE =
             BigInteger.valueOf(Long.MAX_VALUE).shiftLeft(1).add(BigInteger.ONE);
 
+    private static final SerializedString ROOT_VALUE_SEPARATOR = new SerializedString("\n");
+
+    protected final JsonFactory jsonFactory;
+    private final ParallelMerge parallelMerge;
+
+    public JsonJacksonFormat() {
+        this(new JsonFactory());
+    }
+
+    /**
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public JsonJacksonFormat(Charset defaultCharset) {
+        this(new JsonFactory(), defaultCharset);
+    }
+
+    /**
+     * @param jsonFactory creates the parsers and generators, must not be reconfigured once the
+     *                    format is in use
+     */
+    public JsonJacksonFormat(JsonFactory jsonFactory) {
+        this(jsonFactory, Charset.defaultCharset());
+    }
+
+    /**
+     * @param jsonFactory creates the parsers and generators, must not be reconfigured once the
+     *                    format is in use
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public JsonJacksonFormat(JsonFactory jsonFactory, Charset defaultCharset) {
+        this(jsonFactory, defaultCharset, null, 1);
+    }
+
+    /**
+     * Parses the arrays of repeated message fields of the outermost object on {@code
+     * mergeExecutor}: the elements are copied off the parser as they are, parsed in batches of
+     * {@code mergeBatchSize} on the executor, and added in order. An array of up to {@code
+     * mergeBatchSize} elements is parsed on the calling thread.
+     *
+     * @param jsonFactory creates the parsers and generators, must not be reconfigured once the
+     *                    format is in use
+     * @param mergeExecutor parses the batches, {@code null} to parse everything on the calling thread
+     * @param mergeBatchSize how many elements go into one batch
+     */
+    public JsonJacksonFormat(JsonFactory jsonFactory, Executor mergeExecutor, int mergeBatchSize) {
+        this(jsonFactory, Charset.defaultCharset(), mergeExecutor, mergeBatchSize);
+    }
+
+    /**
+     * @param jsonFactory creates the parsers and generators, must not be reconfigured once the
+     *                    format is in use
+     * @param defaultCharset the character set to use by default, when unspecified
+     * @param mergeExecutor see {@link #JsonJacksonFormat(JsonFactory, Executor, int)}
+     * @param mergeBatchSize see {@link #JsonJacksonFormat(JsonFactory, Executor, int)}
+     */
+    public JsonJacksonFormat(JsonFactory jsonFactory, Charset defaultCharset,
+            Executor mergeExecutor, int mergeBatchSize) {
+        super(defaultCharset);
+        if (jsonFactory == null) {
+            throw new NullPointerException("jsonFactory");
+        }
+        this.jsonFactory = jsonFactory;
+        this.parallelMerge = mergeExecutor == null ? null : new ParallelMerge(mergeExecutor, mergeBatchSize);
+    }
+
+    public JsonFactory getJsonFactory() {
+        return jsonFactory;
+    }
+
     /**
      * Outputs a Smile representation of the Protocol Message supplied into the parameter output.
      * (This representation is the new version of the classic "ProtocolPrinter" output from the
@@ -115,8 +198,36 @@ public class JsonJacksonFormat extends ProtobufFormatter {
     public void merge(InputStream input, Charset cs,
     		ExtensionRegistry extensionRegistry, Message.Builder builder) throws IOException {
 
-    	JsonParser parser = jsonFactory.createJsonParser(input);
-    	merge(parser, extensionRegistry, builder);
+    	JsonParser parser = createParser(input);
+    	try {
+    	    merge(parser, extensionRegistry, builder);
+    	} finally {
+    	    // Jackson closes the parser itself at the end of the input; this hands its buffers
+    	    // back to the recycler when merging fails half way too.
+    	    parser.close();
+    	}
+    }
+
+    /**
+     * Parses a heap buffer's backing array in place and reads any other buffer through a
+     * {@link ByteBufferInputStream}. Like the {@code InputStream} overload, Jackson detects the
+     * encoding itself and {@code cs} is not used.
+     */
+    @Override
+    public void merge(ByteBuffer input, Charset cs,
+    		ExtensionRegistry extensionRegistry, Message.Builder builder) throws IOException {
+
+    	JsonParser parser;
+    	if (input.hasArray()) {
+    	    parser = createParser(input.array(), input.arrayOffset() + input.position(), input.remaining());
+    	} else {
+    	    parser = createParser(new ByteBufferInputStream(input));
+    	}
+    	try {
+    	    merge(parser, extensionRegistry, builder);
+    	} finally {
+    	    parser.close();
+    	}
     }
 
     /**
@@ -128,7 +239,21 @@ public class JsonJacksonFormat extends ProtobufFormatter {
     						 ExtensionRegistry extensionRegistry,
                              Message.Builder builder) throws IOException {
 
-        JsonToken token = parser.nextToken();
+        mergeObject(parser, parser.nextToken(), extensionRegistry, builder);
+
+        // Test to make sure the tokenizer has reached the end of the stream.
+        if (parser.nextToken() != null) {
+            throw new RuntimeException("Expecting the end of the stream, but there seems to be more data!  Check the input for a valid JSON format.");
+        }
+    }
+
+    /**
+     * Merges the object starting at {@code token} into {@code builder}, leaving the parser at
+     * its end.
+     */
+    private void mergeObject(JsonParser parser, JsonToken token,
+                             ExtensionRegistry extensionRegistry,
+                             Message.Builder builder) throws IOException {
         if (token.equals(JsonToken.START_OBJECT)) {
         	token = parser.nextToken();
         }
@@ -136,21 +261,117 @@ public class JsonJacksonFormat extends ProtobufFormatter {
         	mergeField(parser, extensionRegistry, builder);
         	token = parser.nextToken();
         }
+    }
 
-        // Test to make sure the tokenizer has reached the end of the stream.
-        if (parser.nextToken() != null) {
-            throw new RuntimeException("Expecting the end of the stream, but there seems to be more data!  Check the input for a valid JSON format.");
-        }
+    /**
+     * Creates a {@link MessageWriter} that writes all messages with one generator: newline
+     * delimited JSON, or for {@link SmileFormat} one Smile document holding a sequence of
+     * objects, whose shared name back-references span the whole stream.
+     */
+    @Override
+    public MessageWriter newMessageWriter(final OutputStream output, Charset cs) throws IOException {
+        final JsonGenerator generator = createStreamGenerator(output);
+        return new MessageWriter() {
+            @Override
+            public void write(Message message) throws IOException {
+                generator.writeStartObject();
+                printMessage(message, generator);
+                generator.writeEndObject();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                generator.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                generator.close();
+                output.close();
+            }
+        };
+    }
+
+    /**
+     * Reads {@code input} with {@link #newMessageReader(InputStream, Charset, ExtensionRegistry)},
+     * which parses the messages straight off the stream, so {@code maxMessageSize} does not apply.
+     */
+    @Override
+    public MessageReader newMessageReader(InputStream input, Charset cs,
+                                          ExtensionRegistry extensionRegistry, int maxMessageSize) throws IOException {
+        return newMessageReader(input, cs, extensionRegistry);
+    }
+
+    /**
+     * Creates a {@link MessageReader} that reads the root-level objects of {@code input} with one
+     * parser.
+     */
+    @Override
+    public MessageReader newMessageReader(InputStream input, Charset cs,
+                                          final ExtensionRegistry extensionRegistry) throws IOException {
+        final JsonParser parser = createParser(input);
+        return new MessageReader() {
+            @Override
+            public boolean merge(Message.Builder builder) throws IOException {
+                JsonToken token = parser.nextToken();
+                if (token == null) {
+                    return false;
+                }
+                mergeObject(parser, token, extensionRegistry, builder);
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                parser.close();
+            }
+        };
     }
 
 
 
+    protected JsonParser createParser(InputStream input) throws IOException {
+        return jsonFactory.createParser(input);
+    }
+
+    protected JsonParser createParser(byte[] input, int offset, int length) throws IOException {
+        return jsonFactory.createParser(input, offset, length);
+    }
+
     protected JsonGenerator createGenerator(OutputStream output) throws IOException {
-    	JsonGenerator generator = jsonFactory.createJsonGenerator(output, JsonEncoding.UTF8);
+    	JsonGenerator generator = jsonFactory.createGenerator(output, JsonEncoding.UTF8);
     	generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    	// Only written between root-level values, i.e. by a MessageWriter.
+    	generator.setRootValueSeparator(ROOT_VALUE_SEPARATOR);
     	return generator;
     }
 
+    /**
+     * Creates the generator a {@link MessageWriter} writes all its messages with.
+     */
+    protected JsonGenerator createStreamGenerator(OutputStream output) throws IOException {
+        return createGenerator(output);
+    }
+
+
+    /**
+     * Streams {@code value} into the generator, which encodes it from its own (recycled) buffer,
+     * instead of copying it to a {@code byte[]} first.
+     */
+    private static void writeBinary(ByteString value, JsonGenerator generator) throws IOException {
+        generator.writeBinary(value.newInput(), value.size());
+    }
+
+    /**
+     * Decodes the current binary (or Base64) value straight into the chunks of a {@link
+     * ByteString}, rather than into a {@code byte[]} that {@link ByteString#copyFrom(byte[])}
+     * would copy once more.
+     */
+    private static ByteString readBinary(JsonParser parser) throws IOException {
+        ByteString.Output output = ByteString.newOutput();
+        parser.readBinaryValue(output);
+        return output.toByteString();
+    }
 
     protected void printMessage(Message message, JsonGenerator generator) throws IOException {
 
@@ -246,7 +467,7 @@ public class JsonJacksonFormat extends ProtobufFormatter {
 
             case BYTES: {
             	// Here we break with JsonFormat - since there is an issue with non-utf8 bytes..
-            	generator.writeBinary(((ByteString)value).toByteArray());
+            	writeBinary((ByteString) value, generator);
                 break;
             }
 
@@ -280,7 +501,7 @@ public class JsonJacksonFormat extends ProtobufFormatter {
             }
             for (ByteString value : field.getLengthDelimitedList()) {
             	// here we break with the JsonFormat to support non-utf8 bytes
-            	generator.writeBinary(value.toByteArray());
+            	writeBinary(value, generator);
             }
             for (UnknownFieldSet value : field.getGroupList()) {
                 generator.writeStartObject();
@@ -306,6 +527,17 @@ public class JsonJacksonFormat extends ProtobufFormatter {
     protected void mergeField(JsonParser parser,
                                    ExtensionRegistry extensionRegistry,
                                    Message.Builder builder) throws JsonParseException, IOException {
+        mergeField(parser, extensionRegistry, builder, parser.getParsingContext().getParent().inRoot());
+    }
+
+    /**
+     * @param outermost whether {@code builder} is the outermost object, whose arrays of messages
+     *                  may be parsed in parallel
+     */
+    private void mergeField(JsonParser parser,
+                            ExtensionRegistry extensionRegistry,
+                            Message.Builder builder,
+                            boolean outermost) throws IOException {
         FieldDescriptor field = null;
         Descriptor type = builder.getDescriptorForType();
         boolean unknown = false;
@@ -372,7 +604,10 @@ public class JsonJacksonFormat extends ProtobufFormatter {
 
             boolean array = token.equals(JsonToken.START_ARRAY);
 
-            if (array) {
+            if (array && outermost && parallelMerge != null && !unknown
+                    && field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                mergeInParallel(parser, extensionRegistry, builder, field, extension);
+            } else if (array) {
             	token = parser.nextToken();
                 while (!token.equals(JsonToken.END_ARRAY)) {
                     handleValue(parser, extensionRegistry, builder, field, extension, unknown);
@@ -384,6 +619,82 @@ public class JsonJacksonFormat extends ProtobufFormatter {
         }
     }
 
+    /**
+     * Merges the elements of the array {@code parser} is at, the value of a repeated message
+     * field of the outermost object, with {@link #parallelMerge}. Each batch of elements is
+     * copied to a buffer of its own, in the format's encoding, and parsed from there.
+     */
+    private void mergeInParallel(JsonParser parser,
+                                 ExtensionRegistry extensionRegistry,
+                                 Message.Builder builder,
+                                 FieldDescriptor field,
+                                 ExtensionRegistry.ExtensionInfo extension) throws IOException {
+        Message prototype = extension == null
+                ? builder.newBuilderForField(field).getDefaultInstanceForType()
+                : extension.defaultInstance;
+        ParallelMerge.Elements elements = parallelMerge.start(builder, field);
+        boolean done = false;
+        try {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            JsonGenerator generator = createStreamGenerator(batch);
+            int count = 0;
+            JsonToken token = parser.nextToken();
+            while (token != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new JsonParseException("Unexpected end of input in " + field.getFullName(),
+                            parser.getCurrentLocation());
+                }
+                generator.copyCurrentStructure(parser);
+                if (++count == parallelMerge.batchSize()) {
+                    generator.close();
+                    elements.add(parseBatch(batch.toByteArray(), prototype, extensionRegistry));
+                    batch = new ByteArrayOutputStream();
+                    generator = createStreamGenerator(batch);
+                    count = 0;
+                }
+                token = parser.nextToken();
+            }
+            generator.close();
+            elements.finish(count == 0 ? null : parseBatch(batch.toByteArray(), prototype, extensionRegistry));
+            done = true;
+        } finally {
+            if (!done) {
+                elements.cancel();
+            }
+        }
+    }
+
+    private ParallelMerge.Batch parseBatch(final byte[] batch, final Message prototype,
+                                           final ExtensionRegistry extensionRegistry) {
+        return new ParallelMerge.Batch() {
+            public List<Message> parse() throws IOException {
+                List<Message> messages = new ArrayList<Message>();
+                JsonParser parser = createParser(batch, 0, batch.length);
+                try {
+                    JsonToken token;
+                    while ((token = parser.nextToken()) != null) {
+                        // As in handleObject: null elements are dropped, other values are empty messages.
+                        if (token == JsonToken.VALUE_NULL) {
+                            continue;
+                        }
+                        Message.Builder builder = prototype.newBuilderForType();
+                        if (token == JsonToken.START_OBJECT) {
+                            token = parser.nextToken();
+                            while (token != null && token != JsonToken.END_OBJECT) {
+                                mergeField(parser, extensionRegistry, builder, false);
+                                token = parser.nextToken();
+                            }
+                        }
+                        messages.add(builder.build());
+                    }
+                } finally {
+                    parser.close();
+                }
+                return messages;
+            }
+        };
+    }
+
     private void handleMissingField(String fieldName, JsonParser parser,
                                            ExtensionRegistry extensionRegistry,
                                            UnknownFieldSet.Builder builder) throws IOException {
@@ -489,7 +800,7 @@ public class JsonJacksonFormat extends ProtobufFormatter {
                 break;
 
             case BYTES:
-            	value = ByteString.copyFrom(parser.getBinaryValue());
+            	value = readBinary(parser);
                 break;
 
             case ENUM: {
@@ -544,7 +855,7 @@ public class JsonJacksonFormat extends ProtobufFormatter {
         }
 
         if (unknown) {
-        	ByteString data = ByteString.copyFrom(parser.getBinaryValue());
+        	ByteString data = readBinary(parser);
             try {
                 subBuilder.mergeFrom(data);
                 return subBuilder.build();
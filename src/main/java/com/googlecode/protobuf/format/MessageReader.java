@@ -0,0 +1,79 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.protobuf.Message;
+
+/**
+ * Reads the messages written by a {@link MessageWriter} of the same format one at a time, see
+ * {@link ProtobufFormatter#newMessageReader(java.io.InputStream, java.nio.charset.Charset,
+ * com.google.protobuf.ExtensionRegistry)}. Only the message being read is held in memory.
+ * <p>
+ * A reader is not thread-safe.
+ */
+public abstract class MessageReader implements Closeable {
+
+    /**
+     * Merges the next message of the stream into {@code builder}.
+     *
+     * @return false, leaving {@code builder} alone, if there are no more messages
+     */
+    public abstract boolean merge(Message.Builder builder) throws IOException;
+
+    /**
+     * Closes the underlying stream.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Iterates over the remaining messages, each merged into a new builder of {@code
+     * prototype}'s type. An {@link IOException} while reading is rethrown as a {@link
+     * RuntimeException}.
+     */
+    public Iterator<Message.Builder> builders(final Message prototype) {
+        return new Iterator<Message.Builder>() {
+            private Message.Builder next;
+            private boolean done;
+
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    Message.Builder builder = prototype.newBuilderForType();
+                    try {
+                        if (merge(builder)) {
+                            next = builder;
+                        } else {
+                            done = true;
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException("Reading the next message failed", e);
+                    }
+                }
+                return next != null;
+            }
+
+            public Message.Builder next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Message.Builder builder = next;
+                next = null;
+                return builder;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+import com.google.protobuf.Message;
+
+/**
+ * Writes any number of messages to one stream, see {@link
+ * ProtobufFormatter#newMessageWriter(java.io.OutputStream, java.nio.charset.Charset)}. The
+ * generator, encoder and buffers are set up once for the whole stream rather than once per
+ * message.
+ * <p>
+ * A writer is not thread-safe. Nothing is guaranteed to reach the stream before {@link #flush()}
+ * or {@link #close()}.
+ */
+public abstract class MessageWriter implements Closeable, Flushable {
+
+    /**
+     * Appends {@code message} to the stream.
+     */
+    public abstract void write(Message message) throws IOException;
+
+    /**
+     * Writes whatever is buffered to the stream and flushes it.
+     */
+    public abstract void flush() throws IOException;
+
+    /**
+     * Ends the stream as the format requires (e.g. closing the root element), then closes the
+     * underlying stream.
+     */
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Estimates how large a formatter's output for a message is, so buffers can be allocated at
+ * about the right size instead of growing.
+ * <p>
+ * The estimate is the message's serialized size, which protobuf computes once and memoizes,
+ * times a per-type ratio of formatted to serialized size. The ratio starts out from the type's
+ * fields: the format's {@link ProtobufFormatter#fieldOverhead(FieldDescriptor) overhead} for
+ * each, including its name, and a typical value. Every recorded output then moves it towards
+ * the ratio actually seen. Updates from concurrent threads may overwrite each other; the result
+ * is still a usable estimate.
+ */
+final class OutputSizes {
+
+    // Ratios are fixed point numbers with 8 fraction bits.
+    private static final int SCALE = 256;
+
+    private final ProtobufFormatter format;
+    private final ConcurrentMap<Descriptor, Ratio> ratios = new ConcurrentHashMap<Descriptor, Ratio>();
+
+    OutputSizes(ProtobufFormatter format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the expected size of {@code message} as printed by the format
+     */
+    int estimate(Message message) {
+        Descriptor type = message.getDescriptorForType();
+        long size = (long) message.getSerializedSize() * ratio(type).value / SCALE
+                + format.messageOverhead(type);
+        return (int) Math.min(size, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * @return a buffer size for output {@link #estimate(Message) estimated} at {@code size}, with
+     *         some headroom so a message slightly larger than expected does not double the buffer
+     */
+    static int withHeadroom(int size) {
+        return (int) Math.min(size + (size >> 3) + 16L, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Adjusts the ratio for the type of {@code message}, which was printed in {@code size} bytes
+     * or chars.
+     */
+    void record(Message message, int size) {
+        int serializedSize = message.getSerializedSize();
+        if (serializedSize == 0) {
+            return;
+        }
+        Descriptor type = message.getDescriptorForType();
+        long seen = (long) Math.max(0, size - format.messageOverhead(type)) * SCALE / serializedSize;
+        Ratio ratio = ratio(type);
+        // An exponential moving average over roughly the last eight messages.
+        ratio.value += ((int) Math.min(seen, Integer.MAX_VALUE / 2) - ratio.value) >> 3;
+    }
+
+    private Ratio ratio(Descriptor type) {
+        Ratio ratio = ratios.get(type);
+        if (ratio == null) {
+            ratio = new Ratio(initialRatio(type));
+            Ratio existing = ratios.putIfAbsent(type, ratio);
+            if (existing != null) {
+                ratio = existing;
+            }
+        }
+        return ratio;
+    }
+
+    /**
+     * The ratio for a message of {@code type} with every field set once to a typical value.
+     */
+    private int initialRatio(Descriptor type) {
+        long formatted = 0;
+        long serialized = 0;
+        for (FieldDescriptor field : type.getFields()) {
+            formatted += format.fieldOverhead(field);
+            serialized += CodedOutputStream.computeTagSize(field.getNumber());
+            switch (field.getType()) {
+                case FIXED32:
+                case SFIXED32:
+                case FLOAT:
+                    formatted += 8;
+                    serialized += 4;
+                    break;
+                case FIXED64:
+                case SFIXED64:
+                case DOUBLE:
+                    formatted += 12;
+                    serialized += 8;
+                    break;
+                case BOOL:
+                    formatted += 4;
+                    serialized += 1;
+                    break;
+                case ENUM:
+                    formatted += field.getEnumType().getValues().get(0).getName().length();
+                    serialized += 1;
+                    break;
+                case STRING:
+                    formatted += 16;
+                    serialized += 17;
+                    break;
+                case BYTES:
+                    formatted += 32;
+                    serialized += 17;
+                    break;
+                case MESSAGE:
+                case GROUP:
+                    // The nested fields are part of the serialized size and get the same ratio.
+                    formatted += format.messageOverhead(field.getMessageType());
+                    serialized += 2;
+                    break;
+                default:
+                    // Varints
+                    formatted += 4;
+                    serialized += 2;
+                    break;
+            }
+        }
+        if (serialized == 0) {
+            return 2 * SCALE;
+        }
+        return (int) Math.min(formatted * SCALE / serialized, Integer.MAX_VALUE / 2);
+    }
+
+    private static final class Ratio {
+        volatile int value;
+
+        Ratio(int value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Parses the elements of large repeated message fields on an {@link Executor}.
+ * <p>
+ * The format only finds where elements begin and end, and hands them over in {@link Batch}es of
+ * {@link #batchSize()} elements, which are parsed on the executor while it scans on. The parsed
+ * messages are added to the builder in input order, each batch as soon as the ones before it are
+ * done. Batches are {@link FutureTask}s, so a batch no worker has started yet is parsed by the
+ * calling thread when it gets to it: a saturated executor slows parsing down but cannot deadlock
+ * it. At most a few batches per processor are pending at a time, which bounds the memory held by
+ * scanned but unparsed elements.
+ */
+final class ParallelMerge {
+
+    private final Executor executor;
+    private final int batchSize;
+    private final int maxPending;
+
+    ParallelMerge(Executor executor, int batchSize) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxPending = 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return how many elements go into one batch
+     */
+    int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Starts merging the elements of one occurrence of {@code field} into {@code builder}.
+     */
+    Elements start(Message.Builder builder, FieldDescriptor field) {
+        return new Elements(builder, field);
+    }
+
+    /**
+     * Scanned elements, parsed by {@link #parse()} on whichever thread gets to the batch first.
+     */
+    interface Batch {
+        List<Message> parse() throws IOException;
+    }
+
+    /**
+     * The batches of one field. Used by the thread that scans the input only.
+     */
+    final class Elements {
+        private final Message.Builder builder;
+        private final FieldDescriptor field;
+        private final LinkedList<FutureTask<List<Message>>> pending = new LinkedList<FutureTask<List<Message>>>();
+
+        Elements(Message.Builder builder, FieldDescriptor field) {
+            this.builder = builder;
+            this.field = field;
+        }
+
+        /**
+         * Hands a full batch to the executor. Adds the oldest batches to the builder first if
+         * too many are pending.
+         */
+        void add(Batch batch) throws IOException {
+            while (pending.size() >= maxPending) {
+                addFirst();
+            }
+            FutureTask<List<Message>> task = task(batch);
+            pending.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Parsed by this thread in addFirst.
+            }
+        }
+
+        /**
+         * Adds all batches and then {@code last}, if not null, to the builder. A field with only
+         * one batch is parsed on this thread right away.
+         */
+        void finish(Batch last) throws IOException {
+            if (last != null) {
+                if (pending.isEmpty()) {
+                    addAll(last.parse());
+                    return;
+                }
+                pending.add(task(last));
+            }
+            while (!pending.isEmpty()) {
+                addFirst();
+            }
+        }
+
+        /**
+         * Drops the batches not parsed yet, after the input turned out to be broken.
+         */
+        void cancel() {
+            for (FutureTask<List<Message>> task : pending) {
+                task.cancel(false);
+            }
+            pending.clear();
+        }
+
+        private void addFirst() throws IOException {
+            FutureTask<List<Message>> task = pending.removeFirst();
+            task.run();
+            try {
+                addAll(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while parsing " + field.getFullName());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        private void addAll(List<Message> messages) {
+            for (Message message : messages) {
+                builder.addRepeatedField(field, message);
+            }
+        }
+    }
+
+    private static FutureTask<List<Message>> task(final Batch batch) {
+        return new FutureTask<List<Message>>(new Callable<List<Message>>() {
+            public List<Message> call() throws IOException {
+                return batch.parse();
+            }
+        });
+    }
+}
@@ -8,28 +8,55 @@
 
 package com.googlecode.protobuf.format;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
 import com.google.protobuf.UnknownFieldSet;
 import com.googlecode.protobuf.format.JavaPropsFormat.ParseException;
+import com.googlecode.protobuf.format.util.ByteBufferInputStream;
+import com.googlecode.protobuf.format.util.ByteBufferOutputStream;
 
+/**
+ * Base class of all formats.
+ * <p>
+ * Formatters are thread-safe. {@code print} and {@code merge} keep their state in per-call
+ * generators and tokenizers; what a formatter holds itself is either immutable or a concurrent
+ * cache. Configure a formatter once (through its constructor or builder) and share it, e.g. via
+ * {@link FormatFactory#getFormatter(FormatFactory.Formatter)}, rather than creating one per call.
+ */
 public abstract class ProtobufFormatter {
-    private Charset defaultCharset = Charset.defaultCharset();
+    private final Charset defaultCharset;
+    private final OutputSizes byteSizes = new OutputSizes(this);
+
+    protected ProtobufFormatter() {
+        this(Charset.defaultCharset());
+    }
 
     /**
-     * Set the default character set to use for input / output data streams
-     * @param cs the character set to use by default, when unspecified
+     * @param defaultCharset the character set to use by default, when unspecified
      */
-    public void setDefaultCharset(Charset cs) {
-        defaultCharset = cs;
+    protected ProtobufFormatter(Charset defaultCharset) {
+        this.defaultCharset = defaultCharset;
     }
-    
+
     /**
      * Get the default character set to use for input / output streams
      * @return the character set to use by default, when unspecified
@@ -60,6 +87,59 @@ public abstract class ProtobufFormatter {
 	 */
 	abstract public void print(final Message message, OutputStream output, Charset cs) throws IOException;
 
+	public void print(final Message message, FieldMask mask, OutputStream output) throws IOException {
+		print(message, mask, output, defaultCharset);
+	}
+
+	/**
+	 * Prints only the fields of {@code message} selected by {@code mask}. The mask {@link
+	 * FieldMask#project(Message) copies} the selected fields into a message of the same type,
+	 * which is printed as usual. The fields left out are never visited or formatted.
+	 *
+	 * @throws IllegalArgumentException if {@code mask} has a path the message type does not have
+	 */
+	public void print(final Message message, FieldMask mask, OutputStream output, Charset cs) throws IOException {
+		print(mask.project(message), output, cs);
+	}
+
+	public int print(final Message message, ByteBuffer output) throws IOException {
+		return print(message, output, defaultCharset);
+	}
+
+	/**
+	 * Prints {@code message} straight into {@code output}, e.g. a direct buffer about to be
+	 * written to a socket, without a {@code byte[]} copy of the whole message.
+	 *
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if the message does not fit, leaving the position of
+	 *         {@code output} as it was, so it can be sent and the message printed again. To split
+	 *         a message over several buffers, print to a {@link ByteBufferOutputStream} instead.
+	 */
+	public int print(final Message message, ByteBuffer output, Charset cs) throws IOException {
+		int start = output.position();
+		ByteBufferOutputStream stream = new ByteBufferOutputStream(output);
+		print(message, stream, cs);
+		if (stream.overflow() > 0) {
+			output.position(start);
+			throw new BufferOverflowException();
+		}
+		return output.position() - start;
+	}
+
+	public void print(final Message message, WritableByteChannel output) throws IOException {
+		print(message, output, defaultCharset);
+	}
+
+	/**
+	 * Prints {@code message} to {@code output}, which must be in blocking mode. The formats
+	 * write in blocks straight from their own buffers, so the message is not copied into one
+	 * {@code byte[]} first; a non-blocking channel can be served from a {@link
+	 * #print(Message, ByteBuffer, Charset) ByteBuffer} instead.
+	 */
+	public void print(final Message message, WritableByteChannel output, Charset cs) throws IOException {
+		print(message, Channels.newOutputStream(output), cs);
+	}
+
 	
 	/**
 	 * @see print(UnknownFieldSet, OutputStream, Charset)
@@ -82,19 +162,21 @@ public abstract class ProtobufFormatter {
 
 	/**
      * Like {@code print()}, but writes directly to a {@code String} and returns it.
+     * <p>
+     * This prints {@link #printToBytes(Message) to bytes} in the default charset and decodes them
+     * with the same charset; formats that print text override it to skip the bytes.
      */
 	public String printToString(final Message message) {
-		try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            print(message, out, defaultCharset);
-            out.flush();
-            return out.toString();
-        } catch (IOException e) {
-            throw new RuntimeException("Writing to a StringBuilder threw an IOException (should never happen).",
-                                       e);
-        }
+		return new String(printToBytes(message), defaultCharset);
 	}
 	
+	/**
+	 * Like {@link #printToString(Message)}, but with only the fields selected by {@code mask}.
+	 */
+	public String printToString(final Message message, FieldMask mask) {
+		return printToString(mask.project(message));
+	}
+
 	/**
      * Like {@code print()}, but writes directly to a {@code String} and returns it.
      */
@@ -103,12 +185,82 @@ public abstract class ProtobufFormatter {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             print(fields, out, defaultCharset);
             out.flush();
-            return out.toString();
+            return out.toString(defaultCharset.name());
         } catch (IOException e) {
             throw new RuntimeException("Writing to a StringBuilder threw an IOException (should never happen).",
                                        e);
         }
 	}
+
+	/**
+	 * Like {@code print()}, but writes to a {@code byte[]} in the default charset and returns it.
+	 * <p>
+	 * The buffer is sized from {@link #estimateSize(Message)}, so it rarely has to grow.
+	 */
+	public byte[] printToBytes(final Message message) {
+		int expectedSize = byteSizes.estimate(message);
+		SizedByteArrayOutputStream out = new SizedByteArrayOutputStream(OutputSizes.withHeadroom(expectedSize));
+		try {
+			print(message, out, defaultCharset, expectedSize);
+		} catch (IOException e) {
+			throw new RuntimeException("Writing to a byte array threw an IOException (should never happen).",
+					e);
+		}
+		byteSizes.record(message, out.size());
+		return out.toTrimmedByteArray();
+	}
+
+	/**
+	 * Estimates the number of bytes {@code message} takes when printed by this format, to size
+	 * buffers with.
+	 * <p>
+	 * This is cheap: the message's serialized size (which protobuf memoizes) times a ratio kept
+	 * per message type. The ratio starts out from the type's fields, with {@link
+	 * #fieldOverhead(FieldDescriptor)} for each, and follows the sizes actually printed by
+	 * {@link #printToBytes(Message)} (or {@code printToString}) after that. It is an estimate, not
+	 * a bound.
+	 */
+	public int estimateSize(final Message message) {
+		return byteSizes.estimate(message);
+	}
+
+	/**
+	 * The length this format adds for one occurrence of {@code field} besides its value: the
+	 * name, quotes, separators and the like. Only used by {@link #estimateSize(Message)}.
+	 */
+	protected int fieldOverhead(FieldDescriptor field) {
+		// "name": value,
+		return field.getName().length() + 5;
+	}
+
+	/**
+	 * The length this format adds around a message of {@code type} besides its fields. Only used
+	 * by {@link #estimateSize(Message)}.
+	 */
+	protected int messageOverhead(Descriptor type) {
+		return 2;
+	}
+
+	/**
+	 * Like {@link #print(Message, OutputStream, Charset)}, for about {@code expectedSize} bytes of
+	 * output, so that formats can size their own buffers to match.
+	 */
+	void print(final Message message, OutputStream output, Charset cs, int expectedSize) throws IOException {
+		print(message, output, cs);
+	}
+
+	/**
+	 * A {@link ByteArrayOutputStream} that hands out its own buffer when it is exactly full.
+	 */
+	private static final class SizedByteArrayOutputStream extends ByteArrayOutputStream {
+		SizedByteArrayOutputStream(int size) {
+			super(size);
+		}
+
+		byte[] toTrimmedByteArray() {
+			return count == buf.length ? buf : Arrays.copyOf(buf, count);
+		}
+	}
 	
 	/**
      * Thrown when parsing an invalid text format message.
@@ -153,4 +305,194 @@ public abstract class ProtobufFormatter {
 			final Message.Builder builder) throws IOException {
 		merge(input, defaultCharset, extensionRegistry, builder);
 	}
+
+	/**
+	 * Parse a text-format message from the remaining bytes of {@code input} and merge the
+	 * contents into {@code builder}. The position of {@code input} is left alone.
+	 * <p>
+	 * The bytes are read in place, so a direct or memory-mapped buffer is not copied into the
+	 * heap first, see {@link #mergeMapped(File, Charset, ExtensionRegistry, Message.Builder)}.
+	 */
+	public void merge(final ByteBuffer input, Charset cs,
+			ExtensionRegistry extensionRegistry,
+			final Message.Builder builder) throws IOException {
+		merge(new ByteBufferInputStream(input), cs, extensionRegistry, builder);
+	}
+
+	public void merge(final ByteBuffer input,
+			final Message.Builder builder) throws IOException {
+		merge(input, defaultCharset, ExtensionRegistry.getEmptyRegistry(), builder);
+	}
+
+	/**
+	 * Maps {@code file} into memory and merges it into {@code builder} with {@link
+	 * #merge(ByteBuffer, Charset, ExtensionRegistry, Message.Builder)}, so a large file is parsed
+	 * without reading it into the heap. Files over 2 GB can not be mapped.
+	 */
+	public void mergeMapped(final File file, Charset cs,
+			ExtensionRegistry extensionRegistry,
+			final Message.Builder builder) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to map: " + size + " bytes");
+			}
+			// The mapping stays valid after the channel is closed.
+			merge(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), cs, extensionRegistry, builder);
+		} finally {
+			input.close();
+		}
+	}
+
+	public void mergeMapped(final File file,
+			final Message.Builder builder) throws IOException {
+		mergeMapped(file, defaultCharset, ExtensionRegistry.getEmptyRegistry(), builder);
+	}
+
+	/**
+	 * Creates a {@link MessageWriter} that appends any number of messages to {@code output}.
+	 * <p>
+	 * By default each message is written as its size in bytes (a varint, as {@link
+	 * Message#writeDelimitedTo(OutputStream)} does) followed by the message as {@code print}
+	 * writes it, which works for every format. Formats that can put several documents in one
+	 * stream more naturally override this, together with {@link #newMessageReader(InputStream,
+	 * Charset, ExtensionRegistry)}.
+	 */
+	public MessageWriter newMessageWriter(OutputStream output, Charset cs) throws IOException {
+		return new DelimitedMessageWriter(this, output, cs);
+	}
+
+	public MessageWriter newMessageWriter(OutputStream output) throws IOException {
+		return newMessageWriter(output, defaultCharset);
+	}
+
+	/**
+	 * Creates a {@link MessageReader} for the messages a {@link #newMessageWriter(OutputStream,
+	 * Charset) MessageWriter} of this format wrote to {@code input}. Extensions will be
+	 * recognized if they are registered in {@code extensionRegistry}.
+	 */
+	public MessageReader newMessageReader(InputStream input, Charset cs,
+			ExtensionRegistry extensionRegistry) throws IOException {
+		return newMessageReader(input, cs, extensionRegistry, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Like {@link #newMessageReader(InputStream, Charset, ExtensionRegistry)}, but a message of
+	 * more than {@code maxMessageSize} bytes fails with a {@link ParseException} before any of it
+	 * is read. This limits what a corrupt or hostile size takes to read. Formats that parse their
+	 * messages straight off the stream, rather than one size-prefixed message at a time, hold
+	 * no message in memory and ignore the limit.
+	 */
+	public MessageReader newMessageReader(InputStream input, Charset cs,
+			ExtensionRegistry extensionRegistry, int maxMessageSize) throws IOException {
+		if (maxMessageSize < 0) {
+			throw new IllegalArgumentException("maxMessageSize must not be negative: " + maxMessageSize);
+		}
+		return new DelimitedMessageReader(this, input, cs, extensionRegistry, maxMessageSize);
+	}
+
+	public MessageReader newMessageReader(InputStream input) throws IOException {
+		return newMessageReader(input, defaultCharset, ExtensionRegistry.getEmptyRegistry());
+	}
+
+	/**
+	 * Writes each message prefixed with its size.
+	 */
+	private static final class DelimitedMessageWriter extends MessageWriter {
+		private final ProtobufFormatter formatter;
+		private final OutputStream output;
+		private final Charset cs;
+		// Holds one printed message at a time.
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+		private final byte[] size = new byte[5];
+
+		DelimitedMessageWriter(ProtobufFormatter formatter, OutputStream output, Charset cs) {
+			this.formatter = formatter;
+			this.output = output;
+			this.cs = cs;
+		}
+
+		@Override
+		public void write(Message message) throws IOException {
+			record.reset();
+			formatter.print(message, record, cs);
+			int value = record.size();
+			int length = 0;
+			while ((value & ~0x7F) != 0) {
+				size[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			size[length++] = (byte) value;
+			output.write(size, 0, length);
+			record.writeTo(output);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			output.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			output.close();
+		}
+	}
+
+	/**
+	 * Reads what a {@link DelimitedMessageWriter} wrote.
+	 */
+	private static final class DelimitedMessageReader extends MessageReader {
+		private final ProtobufFormatter formatter;
+		private final InputStream input;
+		private final Charset cs;
+		private final ExtensionRegistry extensionRegistry;
+		private final int maxMessageSize;
+		// Holds one message at a time, grown to the largest one read.
+		private byte[] record = new byte[256];
+
+		DelimitedMessageReader(ProtobufFormatter formatter, InputStream input, Charset cs,
+				ExtensionRegistry extensionRegistry, int maxMessageSize) {
+			this.formatter = formatter;
+			this.input = input;
+			this.cs = cs;
+			this.extensionRegistry = extensionRegistry;
+			this.maxMessageSize = maxMessageSize;
+		}
+
+		@Override
+		public boolean merge(Message.Builder builder) throws IOException {
+			int firstByte = input.read();
+			if (firstByte == -1) {
+				return false;
+			}
+			int size = CodedInputStream.readRawVarint32(firstByte, input);
+			if (size < 0) {
+				throw new ParseException("Negative message size: " + size);
+			}
+			if (size > maxMessageSize) {
+				throw new ParseException("Message of " + size + " bytes is over the limit of "
+						+ maxMessageSize + " bytes");
+			}
+			for (int read = 0; read < size; ) {
+				if (read == record.length) {
+					// Grown as the bytes arrive, not up front to whatever size the stream claims.
+					record = Arrays.copyOf(record, (int) Math.min(size, 2L * record.length));
+				}
+				int n = input.read(record, read, Math.min(size, record.length) - read);
+				if (n == -1) {
+					throw new EOFException("Stream ended within a message of " + size + " bytes");
+				}
+				read += n;
+			}
+			formatter.merge(new ByteArrayInputStream(record, 0, size), cs, extensionRegistry, builder);
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
 }
@@ -30,16 +30,16 @@ package com.googlecode.protobuf.format;
 
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
-import com.fasterxml.jackson.dataformat.smile.SmileParser;
-import com.google.protobuf.ExtensionRegistry;
-import com.google.protobuf.Message;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
 
 /**
  * Provide ascii text parsing and formatting support for proto2 instances. The implementation
@@ -53,25 +53,116 @@ import com.google.protobuf.Message;
  * @author aantonov@orbitz.com Alex Antonov
  * @author wenboz@google.com Wenbo Zhu
  * @author kenton@google.com Kenton Varda
+ * <p>
+ * Like {@link JsonJacksonFormat}, formats should share one {@link SmileFactory}; a format created
+ * without one gets a factory of its own.
+ * <p>
+ * A {@link MessageWriter} writes all its messages as one Smile document, with
+ * {@link SmileGenerator.Feature#CHECK_SHARED_NAMES} and
+ * {@link SmileGenerator.Feature#CHECK_SHARED_STRING_VALUES} enabled: a field name or short
+ * string seen in an earlier message is written as a one or two byte back-reference, which for a
+ * log of small records of the same type is most of the payload.
  */
 public class SmileFormat extends JsonJacksonFormat {
-    private static SmileFactory smileFactory = new SmileFactory();
+
+    private final SmileFactory smileFactory;
+    // smileFactory with the shared name and value tables enabled, for MessageWriters.
+    private final SmileFactory streamFactory;
+
+    public SmileFormat() {
+        this(new SmileFactory());
+    }
+
+    /**
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public SmileFormat(Charset defaultCharset) {
+        this(new SmileFactory(), defaultCharset);
+    }
+
+    /**
+     * @param smileFactory creates the parsers and generators, must not be reconfigured once the
+     *                     format is in use. The Smile header and end marker are always written.
+     *                     Unless it already enables the header and both shared back-reference
+     *                     features, MessageWriters use a copy of it that does.
+     */
+    public SmileFormat(SmileFactory smileFactory) {
+        this(smileFactory, Charset.defaultCharset());
+    }
+
+    /**
+     * @param smileFactory see {@link #SmileFormat(SmileFactory)}
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public SmileFormat(SmileFactory smileFactory, Charset defaultCharset) {
+        this(smileFactory, defaultCharset, null, 1);
+    }
+
+    /**
+     * @param smileFactory see {@link #SmileFormat(SmileFactory)}
+     * @param mergeExecutor see {@link JsonJacksonFormat#JsonJacksonFormat(JsonFactory, Executor, int)}
+     * @param mergeBatchSize see {@link JsonJacksonFormat#JsonJacksonFormat(JsonFactory, Executor, int)}
+     */
+    public SmileFormat(SmileFactory smileFactory, Executor mergeExecutor, int mergeBatchSize) {
+        this(smileFactory, Charset.defaultCharset(), mergeExecutor, mergeBatchSize);
+    }
 
     /**
-     * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
-     * Extensions will be recognized if they are registered in {@code extensionRegistry}.
-     * @throws IOException 
+     * @param smileFactory see {@link #SmileFormat(SmileFactory)}
+     * @param defaultCharset the character set to use by default, when unspecified
+     * @param mergeExecutor see {@link JsonJacksonFormat#JsonJacksonFormat(JsonFactory, Executor, int)}
+     * @param mergeBatchSize see {@link JsonJacksonFormat#JsonJacksonFormat(JsonFactory, Executor, int)}
      */
-    public void merge(InputStream input, Charset cs,
-    		ExtensionRegistry extensionRegistry, Message.Builder builder) throws IOException {
-    	
-    	SmileParser parser = smileFactory.createParser(input);
-    	merge(parser, extensionRegistry, builder);
+    public SmileFormat(SmileFactory smileFactory, Charset defaultCharset,
+            Executor mergeExecutor, int mergeBatchSize) {
+        super(smileFactory, defaultCharset, mergeExecutor, mergeBatchSize);
+        this.smileFactory = smileFactory;
+        if (smileFactory.isEnabled(SmileGenerator.Feature.WRITE_HEADER)
+                && smileFactory.isEnabled(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+                && smileFactory.isEnabled(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)) {
+            this.streamFactory = smileFactory;
+        } else {
+            // The header tells the parser whether back-references are in use.
+            this.streamFactory = smileFactory.copy()
+                    .configure(SmileGenerator.Feature.WRITE_HEADER, true)
+                    .configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, true)
+                    .configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+        }
+    }
+
+    @Override
+    public SmileFactory getJsonFactory() {
+        return smileFactory;
+    }
+
+    @Override
+    protected int fieldOverhead(FieldDescriptor field) {
+        // A length byte before the name, which later occurrences replace by a back-reference.
+        return field.getName().length() / 2 + 1;
+    }
+
+    @Override
+    protected int messageOverhead(Descriptor type) {
+        // Header, object markers and end marker
+        return 7;
     }
-    
+
+    @Override
     protected JsonGenerator createGenerator(OutputStream output) throws IOException {
-    	SmileGenerator generator = smileFactory.createGenerator(output);
-    	generator.enable(SmileGenerator.Feature.WRITE_HEADER);
+    	return createGenerator(smileFactory, output);
+    }
+
+    @Override
+    protected JsonGenerator createStreamGenerator(OutputStream output) throws IOException {
+        return createGenerator(streamFactory, output);
+    }
+
+    private static SmileGenerator createGenerator(SmileFactory factory, OutputStream output) throws IOException {
+    	SmileGenerator generator = factory.createGenerator(output);
+    	// The factory writes the header as it creates the generator, if configured to.
+    	if (!factory.isEnabled(SmileGenerator.Feature.WRITE_HEADER)) {
+    	    generator.writeHeader();
+    	}
     	generator.enable(SmileGenerator.Feature.WRITE_END_MARKER);
     	generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
     	return generator;
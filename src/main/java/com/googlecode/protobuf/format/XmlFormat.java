@@ -37,6 +37,7 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors;
@@ -45,6 +46,7 @@ import com.google.protobuf.Message;
 import com.google.protobuf.UnknownFieldSet;
 import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.googlecode.protobuf.format.util.BufferedCharSequence;
 import static com.googlecode.protobuf.format.util.TextUtils.*;
 
 /**
@@ -62,6 +64,16 @@ import static com.googlecode.protobuf.format.util.TextUtils.*;
  */
 public final class XmlFormat extends AbstractCharBasedFormatter {
 
+    public XmlFormat() {
+    }
+
+    /**
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public XmlFormat(Charset defaultCharset) {
+        super(defaultCharset);
+    }
+
     /**
      * Outputs a textual representation of the Protocol Message supplied into the parameter output.
      * (This representation is the new version of the classic "ProtocolPrinter" output from the
@@ -89,6 +101,17 @@ public final class XmlFormat extends AbstractCharBasedFormatter {
         generator.print("</message>");
     }
 
+    @Override
+    protected int fieldOverhead(FieldDescriptor field) {
+        // <name>value</name>
+        return 2 * field.getName().length() + 5;
+    }
+
+    @Override
+    protected int messageOverhead(Descriptors.Descriptor type) {
+        return 2 * type.getName().length() + 5;
+    }
+
 
     private void print(Message message, XmlGenerator generator) throws IOException {
 
@@ -293,11 +316,13 @@ public final class XmlFormat extends AbstractCharBasedFormatter {
      * <p>
      * Luckily, Java's regular expression support does manage to be useful to us. (Barely: We need
      * {@code Matcher.usePattern()}, which is new in Java 1.5.) So, we can use that, at least.
-     * Unfortunately, this implies that we need to have the entire input in one contiguous string.
+     * The input is read through a {@link BufferedCharSequence}; whenever a match runs into the
+     * end of the buffered text ({@code Matcher.hitEnd()}) more input is read and the match is
+     * retried, so the entire input never has to be in one contiguous string.
      */
     private static final class Tokenizer {
 
-        private final CharSequence text;
+        private final BufferedCharSequence text;
         private final Matcher matcher;
         private String currentToken;
 
@@ -335,7 +360,7 @@ public final class XmlFormat extends AbstractCharBasedFormatter {
         /**
          * Construct a tokenizer that parses tokens from the given text.
          */
-        public Tokenizer(CharSequence text) {
+        public Tokenizer(BufferedCharSequence text) {
             this.text = text;
             matcher = WHITESPACE.matcher(text);
             skipWhitespace();
@@ -366,20 +391,20 @@ public final class XmlFormat extends AbstractCharBasedFormatter {
                 }
                 ++pos;
             }
+            text.release(pos);
 
             // Match the next token.
-            if (matcher.regionStart() == matcher.regionEnd()) {
+            if (!text.has(pos)) {
                 // EOF
                 currentToken = "";
             } else {
-                matcher.usePattern(TOKEN);
-                if (matcher.lookingAt()) {
+                if (lookingAt(TOKEN)) {
                     currentToken = matcher.group();
-                    matcher.region(matcher.end(), matcher.regionEnd());
+                    matcher.region(matcher.end(), text.length());
                 } else {
                     // Take one character.
                     currentToken = String.valueOf(text.charAt(pos));
-                    matcher.region(pos + 1, matcher.regionEnd());
+                    matcher.region(pos + 1, text.length());
                 }
 
                 skipWhitespace();
@@ -390,9 +415,25 @@ public final class XmlFormat extends AbstractCharBasedFormatter {
          * Skip over any whitespace so that the matcher region starts at the next token.
          */
         private void skipWhitespace() {
-            matcher.usePattern(WHITESPACE);
-            if (matcher.lookingAt()) {
-                matcher.region(matcher.end(), matcher.regionEnd());
+            if (lookingAt(WHITESPACE)) {
+                matcher.region(matcher.end(), text.length());
+            }
+        }
+
+        /**
+        * Matches {@code pattern} at the start of the matcher region. The input is pulled in
+        * while the outcome could still change with more text (i.e. the match hit the end of
+        * the buffered characters).
+        */
+        private boolean lookingAt(Pattern pattern) {
+            matcher.usePattern(pattern);
+            matcher.region(matcher.regionStart(), text.length());
+            while (true) {
+                boolean found = matcher.lookingAt();
+                if (!matcher.hitEnd() || !text.fill()) {
+                    return found;
+                }
+                matcher.region(matcher.regionStart(), text.length());
             }
         }
 
@@ -654,8 +695,27 @@ public final class XmlFormat extends AbstractCharBasedFormatter {
     public void merge(CharSequence input,
                              ExtensionRegistry extensionRegistry,
                              Message.Builder builder) throws ParseException {
-        Tokenizer tokenizer = new Tokenizer(input);
+        merge(new Tokenizer(new BufferedCharSequence(input)), extensionRegistry, builder);
+    }
+
+    /**
+     * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
+     * The input is tokenized as it is read, it is never buffered as a whole.
+     */
+    @Override
+    public void merge(Readable input,
+                      ExtensionRegistry extensionRegistry,
+                      Message.Builder builder) throws IOException {
+        try {
+            merge(new Tokenizer(new BufferedCharSequence(input)), extensionRegistry, builder);
+        } catch (BufferedCharSequence.ReadException e) {
+            throw e.getCause();
+        }
+    }
 
+    private void merge(Tokenizer tokenizer,
+                       ExtensionRegistry extensionRegistry,
+                       Message.Builder builder) throws ParseException {
         // Need to first consume the outer object name element
         consumeOpeningElement(tokenizer);
 
@@ -34,16 +34,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.stream.events.XMLEvent;
 
@@ -55,6 +60,7 @@ import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
 import com.google.protobuf.UnknownFieldSet;
+import com.googlecode.protobuf.format.util.Utf8Writer;
 
 /**
  * <p>
@@ -70,15 +76,87 @@ import com.google.protobuf.UnknownFieldSet;
  */
 public class XmlJavaxFormat extends ProtobufFormatter {
     private static final String MESSAGE_ELEMENT = "message";
+    private static final String MESSAGES_ELEMENT = "messages";
     private static final String EXTENSION_ELEMENT = "extension";
     private static final String EXTENSION_TYPE = "type";
     private static final String UNKNOWN_FIELD_ELEMENT = "unknown-field";
     private static final String UNKNOWN_FIELD_INDEX = "index";
     
-    private XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newFactory();
-    private XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
-	
-		
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    protected final XMLInputFactory xmlInputFactory;
+    protected final XMLOutputFactory xmlOutputFactory;
+    private final ConcurrentMap<Descriptor, Map<String, FieldDescriptor>> fieldNames =
+            new ConcurrentHashMap<Descriptor, Map<String, FieldDescriptor>>();
+
+    public XmlJavaxFormat() {
+        this(Charset.defaultCharset());
+    }
+
+    /**
+     * Uses factories of its own: the input factory from {@link #createInputFactory()}, the output
+     * factory found by the usual StAX lookup.
+     *
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public XmlJavaxFormat(Charset defaultCharset) {
+        super(defaultCharset);
+        this.xmlInputFactory = createInputFactory();
+        this.xmlOutputFactory = XMLOutputFactory.newFactory();
+    }
+
+    /**
+     * Uses the given StAX implementation, e.g. a faster one than the JDK's. Both factories must
+     * not be reconfigured once the format is in use.
+     *
+     * @param xmlInputFactory creates the readers, see {@link #configureInputFactory(XMLInputFactory)}
+     * @param xmlOutputFactory creates the writers
+     */
+    public XmlJavaxFormat(XMLInputFactory xmlInputFactory, XMLOutputFactory xmlOutputFactory) {
+        this(xmlInputFactory, xmlOutputFactory, Charset.defaultCharset());
+    }
+
+    /**
+     * @param xmlInputFactory see {@link #XmlJavaxFormat(XMLInputFactory, XMLOutputFactory)}
+     * @param xmlOutputFactory see {@link #XmlJavaxFormat(XMLInputFactory, XMLOutputFactory)}
+     * @param defaultCharset the character set to use by default, when unspecified
+     */
+    public XmlJavaxFormat(XMLInputFactory xmlInputFactory, XMLOutputFactory xmlOutputFactory,
+            Charset defaultCharset) {
+        super(defaultCharset);
+        if (xmlInputFactory == null) {
+            throw new NullPointerException("xmlInputFactory");
+        }
+        if (xmlOutputFactory == null) {
+            throw new NullPointerException("xmlOutputFactory");
+        }
+        this.xmlInputFactory = xmlInputFactory;
+        this.xmlOutputFactory = xmlOutputFactory;
+    }
+
+    public XMLInputFactory getXmlInputFactory() {
+        return xmlInputFactory;
+    }
+
+    public XMLOutputFactory getXmlOutputFactory() {
+        return xmlOutputFactory;
+    }
+
+    /**
+     * Configures {@code factory} the way the default input factory is: without namespaces, DTDs
+     * or external entities, and without coalescing text, since the merge gathers the text of an
+     * element itself.
+     *
+     * @return {@code factory}
+     */
+    public static XMLInputFactory configureInputFactory(XMLInputFactory factory) {
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
     /**
      * Outputs a Smile representation of the Protocol Message supplied into the parameter output.
      * (This representation is the new version of the classic "ProtocolPrinter" output from the
@@ -86,9 +164,10 @@ public class XmlJavaxFormat extends ProtobufFormatter {
      */
     public void print(final Message message, OutputStream output, Charset cs) throws IOException {
         try {
-            XMLStreamWriter generator = createGenerator(output);
+            XMLStreamWriter generator = createGenerator(output, cs);
         	print(message, generator);
         	generator.writeEndDocument();
+        	generator.flush();
         } catch (XMLStreamException e) {
             throw new IOException(e);
         }
@@ -116,11 +195,12 @@ public class XmlJavaxFormat extends ProtobufFormatter {
      */
     public void print(final UnknownFieldSet fields, OutputStream output, Charset cs) throws IOException {
         try {
-            XMLStreamWriter generator = createGenerator(output);
+            XMLStreamWriter generator = createGenerator(output, cs);
             generator.writeStartElement(MESSAGE_ELEMENT);
         	
         	printUnknownFields(fields, generator);
         	generator.writeEndElement();
+            generator.flush();
             generator.close();
         } catch (XMLStreamException e) {
             throw new IOException(e);
@@ -130,16 +210,45 @@ public class XmlJavaxFormat extends ProtobufFormatter {
         
     /**
      * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
-     * Extensions will be recognized if they are registered in {@code extensionRegistry}.
+     * Extensions will be recognized if they are registered in {@code extensionRegistry}. The
+     * charset is the one the XML declaration names, as {@link #print(Message, OutputStream,
+     * Charset)} writes it, rather than {@code cs}.
      * @throws IOException 
      */
     public void merge(InputStream input, Charset cs,
     		ExtensionRegistry extensionRegistry, Message.Builder builder) throws IOException {
     	
-        XMLEventReader parser;
+        XMLStreamReader reader;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(input);
+            merge(reader, extensionRegistry, builder);
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Parse the message element {@code reader} is at, or the next one, and merge the contents
+     * into {@code builder}. The reader is left at the end of the message element.
+     * Extensions will be recognized if they are registered in {@code extensionRegistry}.
+     * <p>
+     * Unlike {@link #merge(XMLEventReader, ExtensionRegistry, Message.Builder)} this reads with
+     * the cursor API, which creates no event objects, and finds the field of each element in a
+     * table of element names made once per message type.
+     */
+    public void merge(XMLStreamReader reader,
+            ExtensionRegistry extensionRegistry,
+            Message.Builder builder) throws IOException {
         try {
-            parser = xmlInputFactory.createXMLEventReader(input);
-            merge(parser, extensionRegistry, builder);
+            while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                if (!reader.hasNext()) {
+                    throw new IOException("Expecting a message element.");
+                }
+                reader.next();
+            }
+            assert builder.getDescriptorForType().getName().equals(reader.getLocalName());
+            mergeMessage(reader, extensionRegistry, builder);
         } catch (XMLStreamException e) {
             throw new IOException(e);
         }
@@ -183,13 +292,159 @@ public class XmlJavaxFormat extends ProtobufFormatter {
         }
     }
     
-    
-    
+
+    /**
+     * Creates a {@link MessageWriter} that writes all messages with one stream writer, as
+     * sibling elements of a single {@code <messages>} root element.
+     */
+    @Override
+    public MessageWriter newMessageWriter(final OutputStream output, Charset cs) throws IOException {
+        final XMLStreamWriter generator;
+        try {
+            generator = createGenerator(output, cs);
+            generator.writeStartElement(MESSAGES_ELEMENT);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        return new MessageWriter() {
+            @Override
+            public void write(Message message) throws IOException {
+                try {
+                    generator.writeStartElement(message.getDescriptorForType().getName());
+                    printMessage(message, generator);
+                    generator.writeEndElement();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    generator.flush();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+                output.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    generator.writeEndElement();
+                    generator.writeEndDocument();
+                    generator.flush();
+                    generator.close();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+                output.close();
+            }
+        };
+    }
+
+    /**
+     * Reads {@code input} with {@link #newMessageReader(InputStream, Charset, ExtensionRegistry)},
+     * which parses the messages straight off the stream, so {@code maxMessageSize} does not apply.
+     */
+    @Override
+    public MessageReader newMessageReader(InputStream input, Charset cs,
+                                          ExtensionRegistry extensionRegistry, int maxMessageSize) throws IOException {
+        return newMessageReader(input, cs, extensionRegistry);
+    }
+
+    /**
+     * Creates a {@link MessageReader} that reads the child elements of the root element written
+     * by {@link #newMessageWriter(OutputStream, Charset)} with one event reader.
+     */
+    @Override
+    public MessageReader newMessageReader(final InputStream input, Charset cs,
+                                          final ExtensionRegistry extensionRegistry) throws IOException {
+        final XMLStreamReader reader;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(input);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        return new MessageReader() {
+            private boolean started;
+            private boolean finished;
+
+            @Override
+            public boolean merge(Message.Builder builder) throws IOException {
+                try {
+                    if (!started) {
+                        if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+                            throw new IOException("Expecting the root element of a message stream.");
+                        }
+                        started = true;
+                    }
+                    while (!finished && reader.hasNext()) {
+                        int event = reader.next();
+                        if (event == XMLStreamConstants.START_ELEMENT) {
+                            mergeMessage(reader, extensionRegistry, builder);
+                            return true;
+                        }
+                        if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+                            finished = true;
+                        }
+                    }
+                    return false;
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+                input.close();
+            }
+        };
+    }
+
+    @Override
+    protected int fieldOverhead(FieldDescriptor field) {
+        // <name>value</name>
+        return 2 * field.getName().length() + 5;
+    }
+
+    @Override
+    protected int messageOverhead(Descriptor type) {
+        return 2 * type.getName().length() + 5;
+    }
+
+    /**
+     * Creates the input factory of a format constructed without one, once per format. By default
+     * this is the factory found by the usual StAX lookup, set up by {@link
+     * #configureInputFactory(XMLInputFactory)}.
+     */
+    protected XMLInputFactory createInputFactory() {
+        return configureInputFactory(XMLInputFactory.newFactory());
+    }
+
     protected XMLStreamWriter createGenerator(OutputStream output) throws XMLStreamException {
+        return createGenerator(output, getDefaultCharset());
+    }
+
+    /**
+     * Creates a writer of {@code cs} and writes the XML declaration, which names the charset.
+     * UTF-8 is encoded by a {@link Utf8Writer}; other charsets are left to the factory, which
+     * writes characters they cannot encode as character references.
+     */
+    protected XMLStreamWriter createGenerator(OutputStream output, Charset cs) throws XMLStreamException {
         XMLStreamWriter generator;
-        generator = xmlOutputFactory.createXMLStreamWriter(output);
-        generator.writeStartDocument();
-    	return generator;
+        if (UTF_8.equals(cs)) {
+            generator = xmlOutputFactory.createXMLStreamWriter(new Utf8Writer(output));
+        } else {
+            generator = xmlOutputFactory.createXMLStreamWriter(output, cs.name());
+        }
+        generator.writeStartDocument(cs.name(), "1.0");
+        return generator;
     }
 
     
@@ -346,6 +601,141 @@ public class XmlJavaxFormat extends ProtobufFormatter {
     
     
 
+    /**
+     * Merges the fields of the message element {@code reader} is at into {@code builder}, and
+     * leaves the reader at the end of the element. Whitespace and comments between fields are
+     * skipped.
+     */
+    private void mergeMessage(XMLStreamReader reader,
+            ExtensionRegistry extensionRegistry,
+            Message.Builder builder) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            mergeField(reader, extensionRegistry, builder);
+        }
+    }
+
+    /**
+     * Merges the field element {@code reader} is at into {@code builder}, and leaves the reader
+     * at the end of the element. Elements of unknown fields are skipped.
+     */
+    private void mergeField(XMLStreamReader reader,
+            ExtensionRegistry extensionRegistry,
+            Message.Builder builder) throws XMLStreamException {
+        Descriptor type = builder.getDescriptorForType();
+        String fieldName = reader.getLocalName();
+        ExtensionRegistry.ExtensionInfo extension = null;
+        FieldDescriptor field = fieldNames(type).get(fieldName);
+
+        if (field == null) {
+            if (fieldName.equalsIgnoreCase(EXTENSION_ELEMENT)) {
+                String extensionName = reader.getAttributeValue(null, EXTENSION_TYPE);
+                extension = extensionRegistry.findExtensionByName(extensionName);
+                if (extension == null) {
+                    throw new RuntimeException("Extension \""
+                            + extensionName + "\" not found in the ExtensionRegistry.");
+                } else if (extension.descriptor.getContainingType() != type) {
+                    throw new RuntimeException("Extension \"" + extensionName
+                            + "\" does not extend message type \""
+                            + type.getFullName() + "\".");
+                }
+                field = extension.descriptor;
+            } else if (fieldName.equalsIgnoreCase(UNKNOWN_FIELD_ELEMENT)) {
+                // Printed as unknown, it may well be known to this version of the message.
+                String index = reader.getAttributeValue(null, UNKNOWN_FIELD_INDEX);
+                if (index != null && isDigits(index)) {
+                    field = type.findFieldByNumber(Integer.parseInt(index));
+                }
+            }
+        }
+
+        if (field == null) {
+            // no throwing exceptions if field not found, since it could be a different version.
+            skipElement(reader);
+            return;
+        }
+
+        Object result;
+        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+            Message.Builder subBuilder = createSubBuilder(builder, field, extension);
+            mergeMessage(reader, extensionRegistry, subBuilder);
+            result = subBuilder.build();
+        } else {
+            result = handlePrimitive(field, readText(reader));
+        }
+
+        if (field.isRepeated()) {
+            builder.addRepeatedField(field, result);
+        } else {
+            builder.setField(field, result);
+        }
+    }
+
+    /**
+     * @return the text of the element {@code reader} is at, in one piece however many events
+     *         the parser split it into, with the reader left at the end of the element
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        String text = "";
+        StringBuilder longText = null;
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (text.length() == 0) {
+                        text = reader.getText();
+                    } else {
+                        if (longText == null) {
+                            longText = new StringBuilder(text);
+                        }
+                        longText.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    return longText == null ? text : longText.toString();
+                default:
+                    throw new XMLStreamException("Expecting the text of a field, but found an element instead.",
+                            reader.getLocation());
+            }
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return the fields of {@code type} by the names of their elements, which for groups are
+     *         their type names
+     */
+    private Map<String, FieldDescriptor> fieldNames(Descriptor type) {
+        Map<String, FieldDescriptor> names = fieldNames.get(type);
+        if (names == null) {
+            names = new HashMap<String, FieldDescriptor>();
+            for (FieldDescriptor field : type.getFields()) {
+                if (field.getType() == FieldDescriptor.Type.GROUP) {
+                    names.put(field.getMessageType().getName(), field);
+                } else {
+                    names.put(field.getName(), field);
+                }
+            }
+            fieldNames.putIfAbsent(type, names);
+        }
+        return names;
+    }
+
     /**
      * Parse a single field from {@code parser} and merge it into {@code builder}. If a ',' is
      * detected after the field ends, the next field will be parsed automatically
@@ -432,7 +822,16 @@ public class XmlJavaxFormat extends ProtobufFormatter {
             
             Object result = null;
             if (event.isCharacters()) {
-                result = handlePrimitive(parser, field, event.asCharacters().getData());
+                String text = event.asCharacters().getData();
+                if (parser.peek().isCharacters()) {
+                    // The parser may split text, at entities for one.
+                    StringBuilder longText = new StringBuilder(text);
+                    while (parser.peek().isCharacters()) {
+                        longText.append(parser.nextEvent().asCharacters().getData());
+                    }
+                    text = longText.toString();
+                }
+                result = handlePrimitive(field, text);
             } else if ((event.isStartElement() || event.isEndElement()) && 
                     field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
                 result = handleObject(parser, event, extensionRegistry, builder, field, extension);
@@ -489,7 +888,7 @@ public class XmlJavaxFormat extends ProtobufFormatter {
     }
 
     
-    private Object handlePrimitive(XMLEventReader parser, FieldDescriptor field, String value) {
+    private Object handlePrimitive(FieldDescriptor field, String value) {
         Object result = null;
 
         if (value == null) // precondition check
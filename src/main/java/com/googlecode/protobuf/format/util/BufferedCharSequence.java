@@ -0,0 +1,228 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link CharSequence} view of a {@link Readable} which only keeps a sliding
+ * window of the input in memory.
+ * <p>
+ * Indexes are absolute positions in the input. {@link #length()} is the number of
+ * characters read so far; {@link #has(int)} pulls more input on demand. Characters
+ * before the {@link #release(int) released} position may be discarded on the next
+ * refill, so peak memory is bounded by the longest span a tokenizer holds on to
+ * rather than by the size of the document.
+ */
+public final class BufferedCharSequence implements CharSequence {
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private final Readable source;
+    private final CharSequence text;
+    private int textPosition;
+    private CharBuffer sourceBuffer;
+
+    private char[] buffer;
+    // absolute index of buffer[0]
+    private int offset;
+    private int count;
+    private int released;
+    private boolean eof;
+
+    // line and column of the character at offset
+    private int offsetLine;
+    private int offsetColumn;
+
+    public BufferedCharSequence(Readable source) {
+        this(source, null, DEFAULT_CAPACITY);
+    }
+
+    public BufferedCharSequence(CharSequence text) {
+        this(null, text, Math.max(16, Math.min(DEFAULT_CAPACITY, text.length())));
+    }
+
+    private BufferedCharSequence(Readable source, CharSequence text, int capacity) {
+        this.source = source;
+        this.text = text;
+        this.buffer = new char[capacity];
+    }
+
+    /**
+     * Makes sure the character at {@code index} has been read.
+     *
+     * @return false if the input ends before {@code index}
+     * @throws ReadException if reading from the underlying {@link Readable} fails
+     */
+    public boolean has(int index) {
+        while (index >= offset + count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next chunk of input, growing or compacting the window as needed.
+     *
+     * @return false if the input is exhausted
+     * @throws ReadException if reading from the underlying {@link Readable} fails
+     */
+    public boolean fill() {
+        if (eof) {
+            return false;
+        }
+        int discard = released - offset;
+        if (discard > 0) {
+            offsetColumn = column(released);
+            offsetLine = line(released);
+            System.arraycopy(buffer, discard, buffer, 0, count - discard);
+            offset = released;
+            count -= discard;
+        }
+        if (buffer.length - count < buffer.length / 2) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            sourceBuffer = null;
+        }
+        int read;
+        try {
+            do {
+                read = read(count, buffer.length - count);
+            } while (read == 0);
+        } catch (IOException e) {
+            throw new ReadException(e);
+        }
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        count += read;
+        return true;
+    }
+
+    private int read(int start, int len) throws IOException {
+        if (text != null) {
+            int n = Math.min(len, text.length() - textPosition);
+            if (n <= 0) {
+                return -1;
+            }
+            int end = textPosition + n;
+            if (text instanceof String) {
+                ((String) text).getChars(textPosition, end, buffer, start);
+            } else if (text instanceof StringBuilder) {
+                ((StringBuilder) text).getChars(textPosition, end, buffer, start);
+            } else {
+                for (int i = textPosition; i < end; i++) {
+                    buffer[start++] = text.charAt(i);
+                }
+            }
+            textPosition = end;
+            return n;
+        }
+        if (source instanceof Reader) {
+            return ((Reader) source).read(buffer, start, len);
+        }
+        if (sourceBuffer == null) {
+            sourceBuffer = CharBuffer.wrap(buffer);
+        }
+        sourceBuffer.limit(start + len).position(start);
+        return source.read(sourceBuffer);
+    }
+
+    /**
+     * Allows the characters before {@code index} to be discarded.
+     */
+    public void release(int index) {
+        if (index > released) {
+            released = Math.min(index, offset + count);
+        }
+    }
+
+    /**
+     * @return true once the whole input has been read
+     */
+    public boolean isExhausted() {
+        return eof;
+    }
+
+    /**
+     * @return the zero-based line number of the (not yet discarded) character at {@code index}
+     */
+    public int line(int index) {
+        int line = offsetLine;
+        for (int i = offset; i < index; i++) {
+            if (buffer[i - offset] == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+
+    /**
+     * @return the zero-based column number of the (not yet discarded) character at {@code index}
+     */
+    public int column(int index) {
+        int column = offsetColumn;
+        for (int i = offset; i < index; i++) {
+            if (buffer[i - offset] == '\n') {
+                column = 0;
+            } else {
+                column++;
+            }
+        }
+        return column;
+    }
+
+    public int length() {
+        return offset + count;
+    }
+
+    public char charAt(int index) {
+        int i = index - offset;
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("index " + index + " outside of [" + offset + ", "
+                    + (offset + count) + ")");
+        }
+        return buffer[i];
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < offset || end > offset + count || start > end) {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ") outside of [" + offset
+                    + ", " + (offset + count) + ")");
+        }
+        return new String(buffer, start - offset, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count);
+    }
+
+    /**
+     * Thrown when the underlying {@link Readable} fails; {@link #getCause()} is the original
+     * {@link IOException}.
+     */
+    public static class ReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format.util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputStream} that writes straight into a {@link ByteBuffer}, e.g. a socket buffer.
+ * <p>
+ * What does not fit is kept as overflow rather than failing, so a message larger than the buffer
+ * can be printed in one go and sent in several: send the buffer, then {@link
+ * #drainTo(ByteBuffer) drain} the overflow into the emptied (or a new) buffer and repeat until
+ * nothing is left. Later writes go to the buffer last drained into, after any overflow.
+ */
+public final class ByteBufferOutputStream extends OutputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private ByteBuffer buffer;
+    private byte[] overflow = EMPTY;
+    private int overflowStart;
+    private int overflowEnd;
+    private long size;
+
+    public ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+        if (overflowStart == overflowEnd && buffer.hasRemaining()) {
+            buffer.put((byte) b);
+        } else {
+            addOverflow(new byte[]{(byte) b}, 0, 1);
+        }
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        size += len;
+        if (overflowStart == overflowEnd) {
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+        if (len > 0) {
+            addOverflow(b, off, len);
+        }
+    }
+
+    private void addOverflow(byte[] b, int off, int len) {
+        if (overflowEnd + len > overflow.length) {
+            int pending = overflowEnd - overflowStart;
+            byte[] grown = overflow;
+            if (pending + len > overflow.length) {
+                grown = new byte[Math.max(pending + len, overflow.length * 2)];
+            }
+            System.arraycopy(overflow, overflowStart, grown, 0, pending);
+            overflow = grown;
+            overflowStart = 0;
+            overflowEnd = pending;
+        }
+        System.arraycopy(b, off, overflow, overflowEnd, len);
+        overflowEnd += len;
+    }
+
+    /**
+     * @return the number of bytes written that did not fit into the buffer yet
+     */
+    public int overflow() {
+        return overflowEnd - overflowStart;
+    }
+
+    /**
+     * Moves as much of the overflow as fits into {@code next}, which further writes go to.
+     *
+     * @return true if no overflow is left
+     */
+    public boolean drainTo(ByteBuffer next) {
+        buffer = next;
+        int n = Math.min(overflowEnd - overflowStart, next.remaining());
+        next.put(overflow, overflowStart, n);
+        overflowStart += n;
+        if (overflowStart == overflowEnd) {
+            overflowStart = 0;
+            overflowEnd = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of bytes written to this stream so far, overflow included
+     */
+    public long size() {
+        return size;
+    }
+}
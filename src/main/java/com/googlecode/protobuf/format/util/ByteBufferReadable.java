@@ -0,0 +1,101 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A {@link Readable} that decodes the remaining bytes of a {@link ByteBuffer}, e.g. a
+ * memory-mapped file, straight into the {@link CharBuffer} it is asked to fill.
+ * <p>
+ * Unlike an {@link java.io.InputStreamReader} over the buffer there is no intermediate byte or
+ * char buffer. For UTF-8 and US-ASCII, runs of ASCII bytes are widened to chars by hand and only
+ * the rest goes through the {@link CharsetDecoder}. Malformed input is replaced, as an
+ * {@code InputStreamReader} would. The caller's buffer position is left alone.
+ */
+public final class ByteBufferReadable implements Readable {
+
+    private final ByteBuffer input;
+    private final CharsetDecoder decoder;
+    private final boolean asciiCompatible;
+    private boolean flushed;
+    // Holds the second half of a surrogate pair decoded for a read with room for one char.
+    private CharBuffer spill;
+
+    public ByteBufferReadable(ByteBuffer input, Charset cs) {
+        this.input = input.duplicate();
+        this.decoder = cs.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiCompatible = Utf8Writer.supports(cs);
+    }
+
+    public int read(CharBuffer output) throws IOException {
+        if (spill != null && spill.hasRemaining()) {
+            output.put(spill.get());
+            return 1;
+        }
+        if (flushed) {
+            return -1;
+        }
+        int start = output.position();
+        if (asciiCompatible && output.hasArray()) {
+            readAscii(output);
+        }
+        decode(output);
+        if (output.position() == start && output.hasRemaining() && !flushed) {
+            // Too little room for the next character, decode it aside and hand out its first half.
+            if (spill == null) {
+                spill = CharBuffer.allocate(2);
+            }
+            spill.clear();
+            decode(spill);
+            spill.flip();
+            if (spill.hasRemaining()) {
+                output.put(spill.get());
+            }
+        }
+        int read = output.position() - start;
+        return read == 0 && flushed ? -1 : read;
+    }
+
+    private void decode(CharBuffer output) throws IOException {
+        // The whole input is at hand, so every decode call can be told it is the last.
+        CoderResult result = decoder.decode(input, output, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        if (!input.hasRemaining() && decoder.flush(output).isUnderflow()) {
+            flushed = true;
+        }
+    }
+
+    private void readAscii(CharBuffer output) {
+        char[] chars = output.array();
+        int offset = output.arrayOffset() + output.position();
+        int position = input.position();
+        int n = Math.min(output.remaining(), input.remaining());
+        int i = 0;
+        for (; i < n; i++) {
+            byte b = input.get(position + i);
+            if (b < 0) {
+                break;
+            }
+            chars[offset + i] = (char) b;
+        }
+        input.position(position + i);
+        output.position(output.position() + i);
+    }
+}
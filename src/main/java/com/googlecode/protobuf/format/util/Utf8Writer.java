@@ -0,0 +1,235 @@
+/**
+ * Copyright 2000-2011 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package com.googlecode.protobuf.format.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link Writer} that encodes UTF-8 (or US-ASCII) by hand into one reusable byte buffer and
+ * hands it to the {@link OutputStream} in large blocks.
+ * <p>
+ * Unlike {@link java.io.OutputStreamWriter} it encodes {@link CharSequence}s in place, without
+ * copying them to a {@code char[]} first and without going through a {@link
+ * java.nio.charset.CharsetEncoder}. Malformed surrogates and, for US-ASCII, characters outside
+ * the charset are written as {@code '?'}, like the JDK encoders do by default.
+ */
+public final class Utf8Writer extends Writer {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final OutputStream output;
+    private final boolean ascii;
+    private final byte[] buffer;
+    private int count;
+
+    // A high surrogate whose low half has not been written yet, or 0.
+    private char pendingSurrogate;
+
+    public Utf8Writer(OutputStream output) {
+        this(output, false);
+    }
+
+    /**
+     * @param ascii write US-ASCII rather than UTF-8
+     */
+    public Utf8Writer(OutputStream output, boolean ascii) {
+        this(output, ascii, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param ascii write US-ASCII rather than UTF-8
+     * @param bufferSize the size of the buffer, at least 16 bytes are used
+     */
+    public Utf8Writer(OutputStream output, boolean ascii, int bufferSize) {
+        this.output = output;
+        this.ascii = ascii;
+        this.buffer = new byte[Math.max(MIN_BUFFER_SIZE, bufferSize)];
+    }
+
+    /**
+     * @return true if {@code cs} can be written by a {@link Utf8Writer}
+     */
+    public static boolean supports(Charset cs) {
+        return UTF_8.equals(cs) || US_ASCII.equals(cs);
+    }
+
+    /**
+     * Creates a {@link Utf8Writer} for {@code cs}, which must be {@link #supports(Charset)
+     * supported}.
+     */
+    public static Utf8Writer create(OutputStream output, Charset cs) {
+        if (!supports(cs)) {
+            throw new IllegalArgumentException("Unsupported charset: " + cs);
+        }
+        return new Utf8Writer(output, US_ASCII.equals(cs));
+    }
+
+    /**
+     * Like {@link #create(OutputStream, Charset)}, for about {@code expectedSize} bytes of
+     * output: the buffer is no larger than that, nor than the default.
+     */
+    public static Utf8Writer create(OutputStream output, Charset cs, int expectedSize) {
+        if (!supports(cs)) {
+            throw new IllegalArgumentException("Unsupported charset: " + cs);
+        }
+        return new Utf8Writer(output, US_ASCII.equals(cs), Math.min(expectedSize, DEFAULT_BUFFER_SIZE));
+    }
+
+    @Override
+    public Utf8Writer append(CharSequence csq) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        encode(csq, 0, csq.length());
+        return this;
+    }
+
+    @Override
+    public Utf8Writer append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        if (start < 0 || start > end || end > csq.length()) {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ") of " + csq.length());
+        }
+        encode(csq, start, end);
+        return this;
+    }
+
+    @Override
+    public Utf8Writer append(char c) throws IOException {
+        write(c);
+        return this;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        char ch = (char) c;
+        if (ch < 0x80 && pendingSurrogate == 0) {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) ch;
+        } else {
+            encodeChar(ch);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        append(str, off, off + len);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = off, end = off + len; i < end; i++) {
+            char c = cbuf[i];
+            if (c < 0x80 && pendingSurrogate == 0) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[count++] = (byte) c;
+            } else {
+                encodeChar(c);
+            }
+        }
+    }
+
+    private void encode(CharSequence csq, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            char c = csq.charAt(i);
+            if (c < 0x80 && pendingSurrogate == 0) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[count++] = (byte) c;
+            } else {
+                encodeChar(c);
+            }
+        }
+    }
+
+    private void encodeChar(char c) throws IOException {
+        if (count + 4 > buffer.length) {
+            flushBuffer();
+        }
+        if (pendingSurrogate != 0) {
+            char high = pendingSurrogate;
+            pendingSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                if (ascii) {
+                    buffer[count++] = '?';
+                } else {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                }
+                return;
+            }
+            // The high surrogate was not followed by a low one.
+            buffer[count++] = '?';
+        }
+        if (c < 0x80) {
+            buffer[count++] = (byte) c;
+        } else if (Character.isHighSurrogate(c)) {
+            pendingSurrogate = c;
+        } else if (ascii || Character.isLowSurrogate(c)) {
+            buffer[count++] = '?';
+        } else if (c < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            output.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the stream and flushes it. A trailing high surrogate stays
+     * pending until the next character or {@link #close()}.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (pendingSurrogate != 0) {
+            pendingSurrogate = 0;
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = '?';
+        }
+        flushBuffer();
+        output.close();
+    }
+}
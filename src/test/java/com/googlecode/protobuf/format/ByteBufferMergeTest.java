@@ -0,0 +1,93 @@
+package com.googlecode.protobuf.format;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Merging from heap, direct and memory-mapped {@link ByteBuffer}s.
+ */
+@Test
+public class ByteBufferMergeTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @DataProvider(name = "formatters")
+    public static Object[][] formatters() {
+        List<Object[]> data = new ArrayList<Object[]>();
+        for (FormatFactory.Formatter formatter : FormatFactory.Formatter.values()) {
+            if (formatter != FormatFactory.Formatter.HTML) {
+                data.add(new Object[]{formatter});
+            }
+        }
+        return data.toArray(new Object[data.size()][]);
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testMergeFromByteBuffer(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).getFormatter(formatter);
+        UnittestProto.TestAllTypes message = message(formatter);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        format.print(message, output, UTF_8);
+        byte[] printed = output.toByteArray();
+
+        // A slice in the middle of a larger array, with the position past its start.
+        byte[] padded = new byte[printed.length + 20];
+        System.arraycopy(printed, 0, padded, 15, printed.length);
+        ByteBuffer heap = ByteBuffer.wrap(padded, 5, printed.length + 10).slice();
+        heap.position(10);
+        heap.limit(10 + printed.length);
+        assertThat(formatter + " heap", merge(format, heap), equalTo(message));
+        assertThat(heap.position(), is(10));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(printed.length);
+        direct.put(printed).flip();
+        assertThat(formatter + " direct", merge(format, direct), equalTo(message));
+        assertThat(direct.position(), is(0));
+
+        File file = File.createTempFile("message", ".txt");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(printed);
+            out.close();
+            UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+            format.mergeMapped(file, builder);
+            assertThat(formatter + " mapped", builder.build(), equalTo(message));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static UnittestProto.TestAllTypes merge(ProtobufFormatter format, ByteBuffer input) throws Exception {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        format.merge(input, builder);
+        return builder.build();
+    }
+
+    private static UnittestProto.TestAllTypes message(FormatFactory.Formatter formatter) {
+        // XmlFormat does not read back the escapes it prints for non-ASCII text.
+        boolean ascii = formatter == FormatFactory.Formatter.XML;
+        String word = ascii ? "plain" : "grüße €";
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(-42)
+                .setOptionalString(word)
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(7));
+        // Enough text to span several decoder and parser buffers.
+        for (int i = 0; i < 2000; i++) {
+            builder.addRepeatedString(word + " " + i);
+        }
+        return builder.build();
+    }
+}
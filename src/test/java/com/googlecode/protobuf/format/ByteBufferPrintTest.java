@@ -0,0 +1,111 @@
+package com.googlecode.protobuf.format;
+
+import com.googlecode.protobuf.format.util.ByteBufferOutputStream;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+/**
+ * Printing into {@link ByteBuffer}s and channels gives the same bytes as printing to an
+ * {@code OutputStream}.
+ */
+@Test
+public class ByteBufferPrintTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @DataProvider(name = "formatters")
+    public static Object[][] formatters() {
+        return FormatFactoryTest.formatters();
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testPrintToByteBuffer(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).getFormatter(formatter);
+        UnittestProto.TestAllTypes message = message();
+        byte[] expected = print(format, message);
+
+        for (ByteBuffer buffer : new ByteBuffer[]{
+                ByteBuffer.allocate(expected.length + 10), ByteBuffer.allocateDirect(expected.length + 10)}) {
+            buffer.put((byte) 1);
+            assertThat(format.print(message, buffer), is(expected.length));
+            assertThat(buffer.position(), is(1 + expected.length));
+            assertThat(formatter.toString(), bytes(buffer, 1), equalTo(expected));
+        }
+
+        ByteBuffer small = ByteBuffer.allocate(expected.length - 1);
+        small.put((byte) 1);
+        try {
+            format.print(message, small);
+            fail(formatter + " printed more than fits");
+        } catch (BufferOverflowException e) {
+            assertThat(small.position(), is(1));
+        }
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testPrintAcrossBuffers(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).getFormatter(formatter);
+        UnittestProto.TestAllTypes message = message();
+        byte[] expected = print(format, message);
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+        ByteBufferOutputStream output = new ByteBufferOutputStream(buffer);
+        format.print(message, output, UTF_8);
+        assertThat(output.size(), is((long) expected.length));
+        boolean done;
+        do {
+            sent.write(bytes(buffer, 0));
+            buffer.clear();
+            done = output.drainTo(buffer);
+        } while (!done);
+        sent.write(bytes(buffer, 0));
+        assertThat(formatter.toString(), sent.toByteArray(), equalTo(expected));
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testPrintToChannel(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).getFormatter(formatter);
+        UnittestProto.TestAllTypes message = message();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        format.print(message, Channels.newChannel(output), UTF_8);
+        assertThat(formatter.toString(), output.toByteArray(), equalTo(print(format, message)));
+    }
+
+    private static byte[] print(ProtobufFormatter format, UnittestProto.TestAllTypes message) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        format.print(message, output, UTF_8);
+        return output.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int from) {
+        ByteBuffer written = buffer.duplicate();
+        written.flip().position(from);
+        byte[] bytes = new byte[written.remaining()];
+        written.get(bytes);
+        return bytes;
+    }
+
+    private static UnittestProto.TestAllTypes message() {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(7)
+                .setOptionalString("grüße €")
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(3));
+        for (int i = 0; i < 300; i++) {
+            builder.addRepeatedString("value " + i);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,81 @@
+package com.googlecode.protobuf.format;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+/**
+ * Printing with a {@link FieldMask} prints what the message with only the selected fields would.
+ */
+@Test
+public class FieldMaskTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @DataProvider(name = "formatters")
+    public static Object[][] formatters() {
+        return FormatFactoryTest.formatters();
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testPrintWithMask(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).getFormatter(formatter);
+        FieldMask mask = FieldMask.fromString("optional_int32, repeated_nested_message.bb,optional_foreign_message");
+
+        ByteArrayOutputStream masked = new ByteArrayOutputStream();
+        format.print(message(), mask, masked, UTF_8);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        format.print(projection(), expected, UTF_8);
+        assertThat(formatter.toString(), masked.toByteArray(), equalTo(expected.toByteArray()));
+    }
+
+    public void testProject() throws Exception {
+        FieldMask mask = FieldMask.of("repeated_nested_message.bb", "optional_int32", "optional_foreign_message.c",
+                "optional_foreign_message");
+        assertThat(mask.project(message()), equalTo((Object) projection()));
+        assertThat(mask.toString(), is("repeated_nested_message.bb,optional_int32,optional_foreign_message.c,"
+                + "optional_foreign_message"));
+
+        // Paths are checked against the type when the mask is first used with it.
+        for (String path : Arrays.asList("optional_int32.x", "optional_nested_message.cc", "nope")) {
+            try {
+                FieldMask.of(path).project(message());
+                fail("Expected an IllegalArgumentException for " + path);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static UnittestProto.TestAllTypes message() {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(7)
+                .setOptionalString("left out")
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(1))
+                .setOptionalForeignMessage(UnittestProto.ForeignMessage.newBuilder().setC(2));
+        for (int i = 0; i < 20; i++) {
+            builder.addRepeatedNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i));
+            builder.addRepeatedString("left out " + i);
+        }
+        return builder.build();
+    }
+
+    private static UnittestProto.TestAllTypes projection() {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(7)
+                .setOptionalForeignMessage(UnittestProto.ForeignMessage.newBuilder().setC(2));
+        for (int i = 0; i < 20; i++) {
+            builder.addRepeatedNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i));
+        }
+        return builder.build();
+    }
+}
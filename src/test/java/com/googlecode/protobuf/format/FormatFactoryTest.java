@@ -0,0 +1,130 @@
+package com.googlecode.protobuf.format;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.Message;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * The shared formatters of {@link FormatFactory} are used by many threads at once.
+ */
+@Test
+public class FormatFactoryTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 100;
+
+    @DataProvider(name = "formatters")
+    public static Object[][] formatters() {
+        FormatFactory.Formatter[] values = FormatFactory.Formatter.values();
+        Object[][] data = new Object[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = new Object[]{values[i]};
+        }
+        return data;
+    }
+
+    public void testGetFormatterIsShared() {
+        FormatFactory factory = new FormatFactory(UTF_8);
+        for (FormatFactory.Formatter formatter : FormatFactory.Formatter.values()) {
+            ProtobufFormatter instance = factory.getFormatter(formatter);
+            assertThat(factory.getFormatter(formatter), sameInstance(instance));
+            assertThat(instance.getDefaultCharset(), is(UTF_8));
+            assertThat(factory.createFormatter(formatter) == instance, is(false));
+        }
+    }
+
+    public void testJsonFormatBuilder() throws Exception {
+        JsonFormat format = JsonFormat.newBuilder().setDefaultCharset(UTF_8).build();
+        assertThat(format.getDefaultCharset(), is(UTF_8));
+        CouchDBFormat couchDB = new CouchDBFormat(JsonFormat.newBuilder().setDefaultCharset(UTF_8));
+        assertThat(couchDB.getDefaultCharset(), is(UTF_8));
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testConcurrentUse(final FormatFactory.Formatter formatter) throws Exception {
+        final ProtobufFormatter shared = new FormatFactory(UTF_8).getFormatter(formatter);
+        final boolean canMerge = formatter != FormatFactory.Formatter.HTML;
+
+        // What each message looks like when printed by a formatter nobody else is using.
+        final List<UnittestProto.TestAllTypes> messages = new ArrayList<UnittestProto.TestAllTypes>();
+        final List<byte[]> expected = new ArrayList<byte[]>();
+        ProtobufFormatter reference = new FormatFactory(UTF_8).createFormatter(formatter);
+        for (int i = 0; i < THREADS; i++) {
+            UnittestProto.TestAllTypes message = message(i);
+            messages.add(message);
+            expected.add(print(reference, message));
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            int index = (thread + i) % THREADS;
+                            Message message = messages.get(index);
+                            byte[] printed = print(shared, message);
+                            assertThat(formatter + " print", printed, equalTo(expected.get(index)));
+                            if (canMerge) {
+                                Message.Builder builder = message.newBuilderForType();
+                                shared.merge(new ByteArrayInputStream(printed), UTF_8,
+                                        ExtensionRegistry.getEmptyRegistry(), builder);
+                                assertThat(formatter + " merge", builder.build(), equalTo(message));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] print(ProtobufFormatter formatter, Message message) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        formatter.print(message, output, UTF_8);
+        return output.toByteArray();
+    }
+
+    private static UnittestProto.TestAllTypes message(int i) {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(i)
+                .setOptionalInt64(-1000L * i)
+                .setOptionalString("thread " + i)
+                .setOptionalBool(i % 2 == 0)
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i * 3))
+                .setOptionalForeignEnum(UnittestProto.ForeignEnum.valueOf(4 + i % 3));
+        for (int j = 0; j < i; j++) {
+            builder.addRepeatedInt32(i * 100 + j);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,147 @@
+package com.googlecode.protobuf.format;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+@Test
+public class JavaPropsFormatTest {
+
+    private static final JavaPropsFormat FORMAT = new JavaPropsFormat();
+
+    public void testRepeatedMessagesAreSeparate() throws Exception {
+        UnittestProto.TestRequiredForeign message = UnittestProto.TestRequiredForeign.newBuilder()
+                .addRepeatedMessage(UnittestProto.TestRequired.newBuilder().setA(1).setB(2).setC(3).buildPartial())
+                .addRepeatedMessage(UnittestProto.TestRequired.newBuilder().setA(4).buildPartial())
+                .setOptionalMessage(UnittestProto.TestRequired.newBuilder().setB(5).buildPartial())
+                .buildPartial();
+        String text = FORMAT.printToString(message);
+
+        UnittestProto.TestRequiredForeign.Builder builder = UnittestProto.TestRequiredForeign.newBuilder();
+        FORMAT.merge(text, ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.buildPartial(), is(message));
+    }
+
+    public void testPrintKeysAndNumbers() throws Exception {
+        UnittestProto.TestAllTypes.Builder message = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt64(Long.MIN_VALUE)
+                .setOptionalUint32(-1)
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(-10))
+                .setOptionalGroup(UnittestProto.TestAllTypes.OptionalGroup.newBuilder().setA(0));
+        for (int i = 0; i < 11; i++) {
+            message.addRepeatedNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i * 10));
+        }
+        StringBuilder expected = new StringBuilder()
+                .append("optional_int64=-9223372036854775808\n")
+                .append("optional_uint32=4294967295\n")
+                .append("OptionalGroup.a=0\n")
+                .append("optional_nested_message.bb=-10\n");
+        for (int i = 0; i < 11; i++) {
+            expected.append("repeated_nested_message[").append(i).append("].bb=").append(i * 10).append('\n');
+        }
+        assertThat(FORMAT.printToString(message.build()), is(expected.toString()));
+    }
+
+    public void testPropertiesInAnyOrder() throws Exception {
+        String text = "repeated_message[1].a=4\n"
+                + "optional_message.b=5\n"
+                + "repeated_message[0].a=1\n"
+                + "repeated_message[1].b=6\n"
+                + "dummy=7\n"
+                + "optional_message.a=8\n";
+        UnittestProto.TestRequiredForeign.Builder builder = UnittestProto.TestRequiredForeign.newBuilder()
+                .setOptionalMessage(UnittestProto.TestRequired.newBuilder().setC(9).buildPartial());
+        FORMAT.merge(text, ExtensionRegistry.getEmptyRegistry(), builder);
+
+        // Elements go by their indexes, sub-messages are merged into what is there.
+        assertThat(builder.buildPartial(), is(UnittestProto.TestRequiredForeign.newBuilder()
+                .addRepeatedMessage(UnittestProto.TestRequired.newBuilder().setA(1).buildPartial())
+                .addRepeatedMessage(UnittestProto.TestRequired.newBuilder().setA(4).setB(6).buildPartial())
+                .setOptionalMessage(UnittestProto.TestRequired.newBuilder().setA(8).setB(5).setC(9).buildPartial())
+                .setDummy(7)
+                .buildPartial()));
+    }
+
+    public void testPropertiesRoundTrip() throws Exception {
+        UnittestProto.TestAllTypes.Builder message = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalString("a \"quoted\"\nline")
+                .setOptionalBytes(ByteString.copyFrom(new byte[] {0, 'b', (byte) 0xff}))
+                .setOptionalUint64(-1)
+                .setOptionalDouble(-0.25)
+                .setOptionalNestedEnum(UnittestProto.TestAllTypes.NestedEnum.BAR)
+                .setOptionalGroup(UnittestProto.TestAllTypes.OptionalGroup.newBuilder().setA(5))
+                .addAllRepeatedString(Arrays.asList("x", "y", "z"));
+        for (int i = 0; i < 12; i++) {
+            message.addRepeatedNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i));
+        }
+        Properties properties = FORMAT.toProperties(message.build());
+        assertThat(properties.getProperty("optional_string"), is("a \"quoted\"\nline"));
+        assertThat(properties.getProperty("optional_uint64"), is("18446744073709551615"));
+        assertThat(properties.getProperty("optional_nested_enum"), is("BAR"));
+        assertThat(properties.getProperty("OptionalGroup.a"), is("5"));
+        assertThat(properties.getProperty("repeated_nested_message[11].bb"), is("11"));
+
+        // Hashtable order, repeated elements still go by their indexes.
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        FORMAT.merge(properties, builder);
+        assertThat(builder.build(), is(message.build()));
+
+        UnittestProto.TestAllExtensions extensions = UnittestProto.TestAllExtensions.newBuilder()
+                .setExtension(UnittestProto.optionalInt32Extension, 4)
+                .setExtension(UnittestProto.optionalNestedMessageExtension,
+                        UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(2).build())
+                .addExtension(UnittestProto.repeatedStringExtension, "s")
+                .build();
+        properties = FORMAT.toProperties(extensions);
+        assertThat(properties.getProperty("[protobuf_unittest.optional_nested_message_extension].bb"), is("2"));
+        ExtensionRegistry registry = ExtensionRegistry.newInstance();
+        UnittestProto.registerAllExtensions(registry);
+        UnittestProto.TestAllExtensions.Builder extensionsBuilder = UnittestProto.TestAllExtensions.newBuilder();
+        FORMAT.merge(properties, registry, extensionsBuilder);
+        assertThat(extensionsBuilder.build(), is(extensions));
+    }
+
+    public void testMergeMap() throws Exception {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("repeated_int32[1]", "0x10");
+        properties.put("repeated_int32[0]", "-3");
+        properties.put("optional_nested_message.bb", "7");
+        properties.put("optional_foreign_enum", "5");
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        FORMAT.merge(properties, builder);
+        assertThat(builder.build(), is(UnittestProto.TestAllTypes.newBuilder()
+                .addRepeatedInt32(-3)
+                .addRepeatedInt32(16)
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(7))
+                .setOptionalForeignEnum(UnittestProto.ForeignEnum.FOREIGN_BAR)
+                .build()));
+
+        for (String key : Arrays.asList("nope", "optional_int32.x", "repeated_int32", "repeated_int32[x]",
+                "optional_nested_message", "optional_nested_message.bb.c", "[nope].x")) {
+            try {
+                FORMAT.merge(Collections.singletonMap(key, "1"), UnittestProto.TestAllTypes.newBuilder());
+                fail("Expected a ParseException for " + key);
+            } catch (JavaPropsFormat.ParseException e) {
+                assertThat(e.getMessage(), containsString("\"" + key + "\""));
+            }
+        }
+        try {
+            FORMAT.merge(Collections.singletonMap("optional_int32", "one"), UnittestProto.TestAllTypes.newBuilder());
+            fail("Expected a ParseException");
+        } catch (JavaPropsFormat.ParseException e) {
+            assertThat(e.getMessage(), containsString("optional_int32"));
+        }
+    }
+}
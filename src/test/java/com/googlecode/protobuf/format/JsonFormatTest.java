@@ -10,15 +10,20 @@ import com.googlecode.protobuf.format.issue23.Issue23;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.testng.reporters.Files;
+import protobuf_unittest.UnittestCouchDbProto;
 import protobuf_unittest.UnittestProto;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
 
 /**
  * @author scr on 10/13/15.
@@ -121,9 +126,265 @@ public class JsonFormatTest {
         assertThat(actual, equalTo(UnittestProto.TestNullField.newBuilder().build()));
     }
 
+    @Test
+    public void testParseWithCommentsAndLineBreaks() throws Exception {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        JSON_FORMATTER.merge("{\"optional_int32\": -12, # a comment\n" +
+                "  \"optional_string\": \"a \\\"quoted\\\" \\u0041\",\n" +
+                "  \"repeated_uint64\": [18446744073709551615, 0x10, 017]}",
+                ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.build(), is(UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(-12)
+                .setOptionalString("a \"quoted\" A")
+                .addRepeatedUint64(-1L)
+                .addRepeatedUint64(16L)
+                .addRepeatedUint64(15L)
+                .build()));
+    }
+
+    @Test
+    public void testParseExceptionPosition() throws Exception {
+        try {
+            JSON_FORMATTER.merge("{\"optional_int32\": 1,\n  \"optional_int64\": x}",
+                    ExtensionRegistry.getEmptyRegistry(), UnittestProto.TestAllTypes.newBuilder());
+            fail("Expected a ParseException");
+        } catch (JsonFormat.ParseException e) {
+            assertThat(e.getMessage(), is("2:21: Couldn't parse integer: For input string: \"x\""));
+        }
+    }
+
     @Test
     public void testSkipUnknownFieldsFromJson() throws Exception {
         UnittestProto.TestEmptyMessage.Builder builder = UnittestProto.TestEmptyMessage.newBuilder();
         JSON_FORMATTER.merge(JsonFormatTest.class.getResourceAsStream("/json_format_unknown_fields_data.txt"), builder);
     }
+
+    @Test
+    public void testCouchDBFieldNames() throws Exception {
+        UnittestCouchDbProto.Data data = UnittestCouchDbProto.Data.newBuilder()
+                .setId("id").setRev("rev").setData("id").build();
+        CouchDBFormat couchDB = new CouchDBFormat();
+
+        String text = couchDB.printToString(data);
+        assertThat(text, is("{\"_id\": \"id\",\"_rev\": \"rev\",\"data\": \"id\"}"));
+
+        UnittestCouchDbProto.Data.Builder builder = UnittestCouchDbProto.Data.newBuilder();
+        couchDB.merge(text, ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.build(), is(data));
+    }
+
+    @Test
+    public void testExtensionsAndUnknownFields() throws Exception {
+        UnittestProto.TestAllExtensions message = UnittestProto.TestAllExtensions.newBuilder()
+                .setExtension(UnittestProto.optionalInt32Extension, 5)
+                .addExtension(UnittestProto.repeatedStringExtension, "q")
+                .setUnknownFields(UnknownFieldSet.newBuilder()
+                        .addField(999, UnknownFieldSet.Field.newBuilder().addVarint(3).build())
+                        .build())
+                .build();
+        assertThat(JSON_FORMATTER.printToString(message),
+                is("{\"protobuf_unittest.optional_int32_extension\": 5,"
+                        + "\"protobuf_unittest.repeated_string_extension\": [\"q\"], \"999\": [3]}"));
+    }
+
+    @Test
+    public void testEscapeText() throws Exception {
+        String text = "plain text, a \"quote\", a \\ and a / \u0001\n\u00e9\ud83d\ude00";
+        String escaped = "plain text, a \\\"quote\\\", a \\\\ and a \\/ \\u0001\\n\u00e9\\ud83d\\ude00";
+        assertThat(JsonFormat.escapeText(text), is(escaped));
+
+        StringBuilder output = new StringBuilder("prefix ");
+        JsonFormat.escapeText(text, output);
+        assertThat(output.toString(), is("prefix " + escaped));
+
+        UnittestProto.TestAllTypes message = UnittestProto.TestAllTypes.newBuilder().setOptionalString(text).build();
+        StringBuilder json = new StringBuilder();
+        JSON_FORMATTER.print(message, json);
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        JSON_FORMATTER.merge(json, ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.build(), is(message));
+    }
+
+    @Test
+    public void testFieldNameResolution() throws Exception {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        JSON_FORMATTER.merge("{optional_int32: 1, \"optional_string\": \"a\", 4: 2, "
+                + "\"OptionalGroup\": {\"a\": 3}, optionalgroup: {\"a\": 4}, OPTIONAL_INT64: 5}",
+                ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.build(), is(UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(1)
+                .setOptionalString("a")
+                .setOptionalUint64(2)
+                .setOptionalGroup(UnittestProto.TestAllTypes.OptionalGroup.newBuilder().setA(3))
+                .build()));
+
+        ExtensionRegistry registry = ExtensionRegistry.newInstance();
+        UnittestProto.registerAllExtensions(registry);
+        UnittestProto.TestAllExtensions.Builder extensions = UnittestProto.TestAllExtensions.newBuilder();
+        JSON_FORMATTER.merge("{\"protobuf_unittest.optional_int32_extension\": 6, "
+                + "\"protobuf_unittest.optionalgroup_extension\": {\"a\": 7}}", registry, extensions);
+        assertThat(extensions.build(), is(UnittestProto.TestAllExtensions.newBuilder()
+                .setExtension(UnittestProto.optionalInt32Extension, 6)
+                .setExtension(UnittestProto.optionalGroupExtension,
+                        UnittestProto.OptionalGroup_extension.newBuilder().setA(7).build())
+                .build()));
+    }
+
+    @Test
+    public void testWideInput() throws Exception {
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < 50000; i++) {
+            text.append("\"repeated_int32\": ").append(i).append(", \"unknown\": [").append(i).append("], ");
+        }
+        text.append("\"optional_int32\": 1}");
+
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        JSON_FORMATTER.merge(text, ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.getRepeatedInt32Count(), is(50000));
+        assertThat(builder.getRepeatedInt32(49999), is(49999));
+        assertThat(builder.getOptionalInt32(), is(1));
+    }
+
+    @Test
+    public void testDeepInput() throws Exception {
+        int depth = 20000;
+        JsonFormat format = JsonFormat.newBuilder().setMaxDepth(depth).build();
+        UnittestProto.TestRecursiveMessage.Builder builder = UnittestProto.TestRecursiveMessage.newBuilder();
+        format.merge(nested(depth), ExtensionRegistry.getEmptyRegistry(), builder);
+
+        UnittestProto.TestRecursiveMessage message = builder.build();
+        for (int i = 1; i < depth; i++) {
+            assertThat(message.getI(), is(i));
+            message = message.getA();
+        }
+        assertThat(message.getI(), is(depth));
+        assertThat(message.hasA(), is(false));
+    }
+
+    @Test
+    public void testMaxDepth() throws Exception {
+        JsonFormat format = JsonFormat.newBuilder().setMaxDepth(10).build();
+        format.merge(nested(10), ExtensionRegistry.getEmptyRegistry(),
+                UnittestProto.TestRecursiveMessage.newBuilder());
+        try {
+            format.merge(nested(11), ExtensionRegistry.getEmptyRegistry(),
+                    UnittestProto.TestRecursiveMessage.newBuilder());
+            fail("Expected a ParseException");
+        } catch (JsonFormat.ParseException e) {
+            assertThat(e.getMessage(), is("1:142: Input nested deeper than 10 levels."));
+        }
+
+        // Unknown fields are skipped without recursion, but within the same limit.
+        try {
+            format.merge("{\"unknown\": [[[[[[[[[[1]]]]]]]]]]}", ExtensionRegistry.getEmptyRegistry(),
+                    UnittestProto.TestRecursiveMessage.newBuilder());
+            fail("Expected a ParseException");
+        } catch (JsonFormat.ParseException e) {
+            assertThat(e.getMessage(), is("1:22: Input nested deeper than 10 levels."));
+        }
+
+        try {
+            JSON_FORMATTER.merge(nested(JsonFormat.DEFAULT_MAX_DEPTH + 1), ExtensionRegistry.getEmptyRegistry(),
+                    UnittestProto.TestRecursiveMessage.newBuilder());
+            fail("Expected a ParseException");
+        } catch (JsonFormat.ParseException e) {
+            // expected
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testTruncatedInput() throws Exception {
+        String[] inputs = {"{\"optional_int32\": 1,", "{\"repeated_int32\": [1, ", "{\"optional_nested_message\": {\"bb\": 1,"};
+        for (String input : inputs) {
+            try {
+                JSON_FORMATTER.merge(input, ExtensionRegistry.getEmptyRegistry(), UnittestProto.TestAllTypes.newBuilder());
+                fail("Expected a ParseException for " + input);
+            } catch (JsonFormat.ParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testParallelPrint() throws Exception {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder().setOptionalInt32(1);
+        for (int i = 0; i < 5000; i++) {
+            builder.addRepeatedNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i));
+            builder.addRepeatedForeignMessage(UnittestProto.ForeignMessage.newBuilder().setC(-i));
+        }
+        builder.addRepeatedString("after");
+        UnittestProto.TestAllTypes message = builder.build();
+        String expected = JSON_FORMATTER.printToString(message);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            JsonFormat parallel = JsonFormat.newBuilder().setParallelPrint(executor, 100).build();
+            assertThat(parallel.printToString(message), is(expected));
+
+            // With every pool thread busy, the printing thread does all chunks itself.
+            final CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < 3; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            assertThat(parallel.printToString(message), is(expected));
+            release.countDown();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testParallelMerge() throws Exception {
+        UnittestProto.TestAllTypes.Builder batch = UnittestProto.TestAllTypes.newBuilder().setOptionalInt32(1);
+        for (int i = 0; i < 1000; i++) {
+            batch.addRepeatedNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i));
+            batch.addRepeatedForeignMessage(UnittestProto.ForeignMessage.newBuilder().setC(-i));
+        }
+        UnittestProto.TestAllTypes message = batch.addRepeatedString("after").build();
+        // Brackets in strings and comments are not structure.
+        String text = JSON_FORMATTER.printToString(message).replace("\"bb\": 7}",
+                "\"bb\": 7 # }]\n, \"unknown\": \"}]\"}");
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            JsonFormat format = JsonFormat.newBuilder().setParallelMerge(executor, 64).build();
+            UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+            format.merge(text, ExtensionRegistry.getEmptyRegistry(), builder);
+            assertThat(builder.build(), is(message));
+
+            try {
+                format.merge(text.replace("\"bb\": 500}", "\"bb\": x}"), ExtensionRegistry.getEmptyRegistry(),
+                        UnittestProto.TestAllTypes.newBuilder());
+                fail("Expected a ParseException");
+            } catch (JsonFormat.ParseException e) {
+                assertThat(e.getMessage(), is("Element 500 of protobuf_unittest.TestAllTypes.repeated_nested_message: "
+                        + "1:8: Couldn't parse integer: For input string: \"x\""));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A {@code TestRecursiveMessage} with {@code depth} levels, numbered from 1.
+     */
+    private static String nested(int depth) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i < depth; i++) {
+            text.append("{\"i\": ").append(i).append(", \"a\": ");
+        }
+        text.append("{\"i\": ").append(depth).append('}');
+        for (int i = 1; i < depth; i++) {
+            text.append('}');
+        }
+        return text.toString();
+    }
 }
@@ -2,16 +2,25 @@ package com.googlecode.protobuf.format;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.ExtensionRegistry;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.testng.reporters.Files;
 import protobuf_unittest.UnittestProto;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.StringWriter;
 import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -68,4 +77,115 @@ public class JsonJacksonFormatTest {
         assertThat(testAllTypesBuilder.getOptionalUint64(), is(maxLongAsBigInt.longValue()));
         assertThat(testAllTypesBuilder.getOptionalFixed64(), is(maxLongAsBigInt.longValue()));
     }
+
+    @Test
+    public void testCustomFactory() throws Exception {
+        byte[] withComments = "{/* a comment */ \"optional_int32\": 1}".getBytes("UTF-8");
+        // The factory of one default format is not shared with other default formats.
+        new JsonJacksonFormat().getJsonFactory().enable(JsonParser.Feature.ALLOW_COMMENTS);
+        try {
+            new JsonJacksonFormat().merge(new ByteArrayInputStream(withComments), UnittestProto.TestAllTypes.newBuilder());
+            fail("Comments are not allowed by default");
+        } catch (JsonParseException e) {
+            // expected
+        }
+
+        JsonFactory factory = new JsonFactory().enable(JsonParser.Feature.ALLOW_COMMENTS);
+        JsonJacksonFormat format = new JsonJacksonFormat(factory);
+        assertThat(format.getJsonFactory(), is(factory));
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        format.merge(new ByteArrayInputStream(withComments), builder);
+        assertThat(builder.getOptionalInt32(), is(1));
+
+        SmileFactory smileFactory = new SmileFactory();
+        SmileFormat smile = new SmileFormat(smileFactory);
+        assertThat(smile.getJsonFactory(), is(smileFactory));
+        assertThat(new SmileFormat().getJsonFactory() == new SmileFormat().getJsonFactory(), is(false));
+        UnittestProto.TestAllTypes message = UnittestProto.TestAllTypes.newBuilder().setOptionalString("smile").build();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        smile.print(message, output);
+        builder = UnittestProto.TestAllTypes.newBuilder();
+        smile.merge(new ByteArrayInputStream(output.toByteArray()), builder);
+        assertThat(builder.build(), is(message));
+    }
+
+    @Test
+    public void testBytesRoundTrip() throws Exception {
+        byte[] large = new byte[1 << 20];
+        new Random(1).nextBytes(large);
+        ByteString small = ByteString.copyFrom(new byte[]{1, 2, 3, (byte) 0xff});
+        UnittestProto.TestAllTypes message = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalBytes(ByteString.copyFrom(large))
+                .addRepeatedBytes(small)
+                .addRepeatedBytes(small.concat(small))
+                .addRepeatedBytes(ByteString.EMPTY)
+                .build();
+        for (JsonJacksonFormat format : new JsonJacksonFormat[]{new JsonJacksonFormat(), new SmileFormat()}) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            format.print(message, output);
+            UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+            format.merge(new ByteArrayInputStream(output.toByteArray()), builder);
+            assertThat(builder.build(), is(message));
+        }
+    }
+
+    @Test
+    public void testSmileStreamSharesNamesAndValues() throws Exception {
+        SmileFactory smileFactory = new SmileFactory()
+                .configure(SmileGenerator.Feature.WRITE_HEADER, false)
+                .configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, false);
+        SmileFormat smile = new SmileFormat(smileFactory);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        MessageWriter writer = smile.newMessageWriter(stream);
+        int perMessageSize = 0;
+        for (int i = 0; i < 100; i++) {
+            UnittestProto.TestAllTypes message = UnittestProto.TestAllTypes.newBuilder()
+                    .setOptionalInt32(i)
+                    .setOptionalString(i % 2 == 0 ? "even" : "odd")
+                    .setOptionalNestedEnum(UnittestProto.TestAllTypes.NestedEnum.BAR)
+                    .build();
+            writer.write(message);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            smile.print(message, output);
+            perMessageSize += output.size();
+        }
+        writer.close();
+        assertFalse(smileFactory.isEnabled(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+        assertTrue(stream.size() * 3 < perMessageSize, stream.size() + " vs. " + perMessageSize);
+
+        MessageReader reader = smile.newMessageReader(new ByteArrayInputStream(stream.toByteArray()));
+        for (int i = 0; i < 100; i++) {
+            UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+            assertTrue(reader.merge(builder));
+            assertThat(builder.getOptionalInt32(), is(i));
+            assertThat(builder.getOptionalString(), is(i % 2 == 0 ? "even" : "odd"));
+        }
+        assertFalse(reader.merge(UnittestProto.TestAllTypes.newBuilder()));
+    }
+
+    @Test
+    public void testParallelMerge() throws Exception {
+        UnittestProto.TestAllTypes.Builder batch = UnittestProto.TestAllTypes.newBuilder().setOptionalInt32(1);
+        for (int i = 0; i < 1000; i++) {
+            batch.addRepeatedNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i));
+            batch.addRepeatedForeignMessage(UnittestProto.ForeignMessage.newBuilder().setC(-i));
+        }
+        UnittestProto.TestAllTypes message = batch.addRepeatedString("after").build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (JsonJacksonFormat format : new JsonJacksonFormat[]{
+                    new JsonJacksonFormat(new JsonFactory(), executor, 64),
+                    new SmileFormat(new SmileFactory(), executor, 64)}) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                format.print(message, output);
+                UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+                format.merge(new ByteArrayInputStream(output.toByteArray()), builder);
+                assertThat(format.getClass().getSimpleName(), builder.build(), is(message));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
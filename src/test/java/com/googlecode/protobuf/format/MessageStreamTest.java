@@ -0,0 +1,151 @@
+package com.googlecode.protobuf.format;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.Message;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+/**
+ * Many messages written to one stream by a {@link MessageWriter} and read back by a
+ * {@link MessageReader}.
+ */
+@Test
+public class MessageStreamTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = 20;
+
+    @DataProvider(name = "formatters")
+    public static Object[][] formatters() {
+        List<Object[]> data = new ArrayList<Object[]>();
+        for (FormatFactory.Formatter formatter : FormatFactory.Formatter.values()) {
+            if (formatter != FormatFactory.Formatter.HTML) {
+                data.add(new Object[]{formatter});
+            }
+        }
+        return data.toArray(new Object[data.size()][]);
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testRoundTrip(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).getFormatter(formatter);
+        List<UnittestProto.TestAllTypes> messages = new ArrayList<UnittestProto.TestAllTypes>();
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add(message(i));
+        }
+
+        byte[] written = write(format, messages);
+
+        MessageReader reader = format.newMessageReader(new ByteArrayInputStream(written));
+        Iterator<Message.Builder> builders = reader.builders(UnittestProto.TestAllTypes.getDefaultInstance());
+        for (UnittestProto.TestAllTypes message : messages) {
+            assertThat(formatter + " has next", builders.hasNext(), is(true));
+            assertThat(formatter.toString(), builders.next().build(), equalTo((Message) message));
+        }
+        assertThat(formatter + " has next", builders.hasNext(), is(false));
+        reader.close();
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testEmptyStream(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).getFormatter(formatter);
+        byte[] written = write(format, new ArrayList<UnittestProto.TestAllTypes>());
+
+        MessageReader reader = format.newMessageReader(new ByteArrayInputStream(written));
+        assertThat(formatter.toString(), reader.merge(UnittestProto.TestAllTypes.newBuilder()), is(false));
+        reader.close();
+    }
+
+    public void testSizePrefixedLimits() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("line ").append(i).append("; ");
+        }
+        List<UnittestProto.TestAllTypes> messages = new ArrayList<UnittestProto.TestAllTypes>();
+        messages.add(UnittestProto.TestAllTypes.newBuilder().setOptionalString(text.toString()).build());
+        // A size of Integer.MAX_VALUE, followed by a few bytes only.
+        byte[] overLong = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, '<', 'a'};
+
+        for (ProtobufFormatter format : new ProtobufFormatter[]{new XmlFormat(UTF_8), new JavaPropsFormat(UTF_8)}) {
+            byte[] written = write(format, messages);
+            MessageReader reader = format.newMessageReader(new ByteArrayInputStream(written), UTF_8,
+                    ExtensionRegistry.getEmptyRegistry(), written.length);
+            UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+            assertThat(reader.merge(builder), is(true));
+            assertThat(builder.build(), equalTo(messages.get(0)));
+
+            reader = format.newMessageReader(new ByteArrayInputStream(written), UTF_8,
+                    ExtensionRegistry.getEmptyRegistry(), 1000);
+            try {
+                reader.merge(UnittestProto.TestAllTypes.newBuilder());
+                fail("Expected the message to be over the limit");
+            } catch (ProtobufFormatter.ParseException e) {
+                assertThat(e.getMessage(), containsString("limit of 1000 bytes"));
+            }
+
+            // Read as far as the stream goes, without taking the size on trust.
+            reader = format.newMessageReader(new ByteArrayInputStream(overLong));
+            try {
+                reader.merge(UnittestProto.TestAllTypes.newBuilder());
+                fail("Expected the stream to end within the message");
+            } catch (EOFException e) {
+                assertThat(e.getMessage(), containsString(Integer.toString(Integer.MAX_VALUE)));
+            }
+        }
+    }
+
+    public void testNewlineDelimitedJson() throws Exception {
+        List<UnittestProto.TestAllTypes> messages = new ArrayList<UnittestProto.TestAllTypes>();
+        messages.add(message(1));
+        messages.add(message(2));
+        for (ProtobufFormatter format : new ProtobufFormatter[]{new JsonFormat(), new JsonJacksonFormat()}) {
+            String[] lines = new String(write(format, messages), UTF_8).split("\n");
+            assertThat(lines.length, is(2));
+            for (int i = 0; i < lines.length; i++) {
+                UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+                format.merge(new ByteArrayInputStream(lines[i].getBytes(UTF_8)), UTF_8, builder);
+                assertThat(builder.build(), equalTo(messages.get(i)));
+            }
+        }
+    }
+
+    private static byte[] write(ProtobufFormatter format, List<UnittestProto.TestAllTypes> messages)
+            throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        MessageWriter writer = format.newMessageWriter(output);
+        for (Message message : messages) {
+            writer.write(message);
+        }
+        writer.close();
+        return output.toByteArray();
+    }
+
+    private static UnittestProto.TestAllTypes message(int i) {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(i)
+                .setOptionalString("message " + i)
+                .setOptionalBytes(ByteString.copyFromUtf8("bytes " + i))
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(i * 3))
+                .setOptionalForeignEnum(UnittestProto.ForeignEnum.valueOf(4 + i % 3));
+        for (int j = 0; j < i % 4; j++) {
+            builder.addRepeatedString("item " + j);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,87 @@
+package com.googlecode.protobuf.format;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * {@code printToString} and {@code printToBytes} give what {@code print} does, whatever the
+ * platform charset is.
+ */
+@Test
+public class PrintToStringTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @DataProvider(name = "formatters")
+    public static Object[][] formatters() {
+        return FormatFactoryTest.formatters();
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testPrintToBytes(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).createFormatter(formatter);
+        // Messages of one type but different sizes, so the size estimate is both too small and too large.
+        for (int i = 0; i < 50; i++) {
+            UnittestProto.TestAllTypes message = message(i * 37 % 200);
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            format.print(message, expected, UTF_8);
+            assertThat(formatter + " message " + i, format.printToBytes(message), equalTo(expected.toByteArray()));
+        }
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testEstimateSize(FormatFactory.Formatter formatter) throws Exception {
+        ProtobufFormatter format = new FormatFactory(UTF_8).createFormatter(formatter);
+        UnittestProto.TestAllTypes message = message(20);
+        int estimate = format.estimateSize(message);
+        int size = format.printToBytes(message).length;
+        assertThat(formatter + " first estimate " + estimate + " for " + size,
+                estimate > size / 4 && estimate < size * 4, is(true));
+
+        // Printing messages of the type moves the estimate towards the actual size.
+        for (int i = 0; i < 50; i++) {
+            format.printToBytes(message);
+        }
+        estimate = format.estimateSize(message);
+        assertThat(formatter + " estimate " + estimate + " for " + size,
+                Math.abs(estimate - size) <= size / 20 + 8, is(true));
+    }
+
+    public void testPrintToStringKeepsText() throws Exception {
+        UnittestProto.TestAllTypes message = message(3);
+        for (FormatFactory.Formatter formatter : new FormatFactory.Formatter[]{
+                FormatFactory.Formatter.JSON, FormatFactory.Formatter.XML,
+                FormatFactory.Formatter.HTML, FormatFactory.Formatter.JAVA_PROPS}) {
+            // Text formats print the characters themselves, the default charset is not involved.
+            AbstractCharBasedFormatter format =
+                    (AbstractCharBasedFormatter) new FormatFactory(US_ASCII).createFormatter(formatter);
+            StringBuilder expected = new StringBuilder();
+            format.print(message, expected);
+            assertThat(formatter.toString(), format.printToString(message), is(expected.toString()));
+        }
+
+        // Other formats decode the bytes with the charset they were printed in.
+        ProtobufFormatter jackson = new JsonJacksonFormat(UTF_8);
+        String json = jackson.printToString(message);
+        assertThat(json, json.contains("grüße €"), is(true));
+    }
+
+    private static UnittestProto.TestAllTypes message(int size) {
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(size)
+                .setOptionalString("grüße €");
+        for (int i = 0; i < size; i++) {
+            builder.addRepeatedString("value " + i);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,122 @@
+package com.googlecode.protobuf.format;
+
+import com.google.protobuf.ExtensionRegistry;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+/**
+ * Merging from a {@link Readable} pulls the input in small chunks instead of reading it all up
+ * front; these tests feed documents that span many chunks and buffer refills.
+ */
+@Test
+public class StreamingMergeTest {
+
+    private static UnittestProto.TestAllTypes largeMessage() {
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longString.append((char) ('a' + i % 26));
+        }
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(-42)
+                .setOptionalUint64(-1L)
+                .setOptionalDouble(2.5)
+                .setOptionalString(longString.toString())
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(7))
+                .setOptionalNestedEnum(UnittestProto.TestAllTypes.NestedEnum.BAZ);
+        for (int i = 0; i < 3000; i++) {
+            builder.addRepeatedInt32(i * 31);
+        }
+        for (int i = 0; i < 500; i++) {
+            builder.addRepeatedString("value " + i);
+        }
+        return builder.build();
+    }
+
+    @DataProvider(name = "formatters")
+    public static Object[][] formatters() {
+        return new Object[][]{
+                {new JsonFormat()},
+                {new CouchDBFormat()},
+                {new XmlFormat()},
+                {new JavaPropsFormat()}
+        };
+    }
+
+    @Test(dataProvider = "formatters")
+    public void testMergeFromReaderInSmallChunks(AbstractCharBasedFormatter formatter) throws Exception {
+        UnittestProto.TestAllTypes message = largeMessage();
+        String text = formatter.printToString(message);
+
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        formatter.merge(new ChunkedReader(text, 7), ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.build(), equalTo(message));
+
+        builder = UnittestProto.TestAllTypes.newBuilder();
+        formatter.merge(text, ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.build(), equalTo(message));
+    }
+
+    public void testParseExceptionPositionAfterRefills() throws Exception {
+        StringBuilder text = new StringBuilder("{\"repeated_int32\": [\n");
+        for (int i = 0; i < 5000; i++) {
+            text.append("  ").append(i).append(",\n");
+        }
+        text.append("  x]}");
+
+        try {
+            new JsonFormat().merge(new ChunkedReader(text.toString(), 100),
+                    ExtensionRegistry.getEmptyRegistry(), UnittestProto.TestAllTypes.newBuilder());
+            fail("Expected a ParseException");
+        } catch (JsonFormat.ParseException e) {
+            assertThat(e.getMessage(), is("5002:3: Couldn't parse integer: For input string: \"x\""));
+        }
+    }
+
+    public void testReadFailureIsRethrown() throws Exception {
+        final IOException failure = new IOException("boom");
+        Reader reader = new Reader() {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                throw failure;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            new XmlFormat().merge(reader, ExtensionRegistry.getEmptyRegistry(),
+                    UnittestProto.TestAllTypes.newBuilder());
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertThat(e == failure, is(true));
+        }
+    }
+
+    /**
+     * Hands out at most {@code chunk} characters per read.
+     */
+    private static class ChunkedReader extends StringReader {
+        private final int chunk;
+
+        ChunkedReader(String text, int chunk) {
+            super(text);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, chunk));
+        }
+    }
+}
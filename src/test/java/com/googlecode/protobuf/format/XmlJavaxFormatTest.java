@@ -0,0 +1,120 @@
+package com.googlecode.protobuf.format;
+
+import com.google.protobuf.ExtensionRegistry;
+import org.testng.annotations.Test;
+import protobuf_unittest.UnittestProto;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Test
+public class XmlJavaxFormatTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final XmlJavaxFormat FORMAT = new XmlJavaxFormat();
+
+    public void testTextSplitByTheParser() throws Exception {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            longText.append("line ").append(i).append(" <&> ");
+        }
+        UnittestProto.TestAllTypes message = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalString(longText.toString())
+                .setOptionalCord("")
+                .addRepeatedString("a & b")
+                .addRepeatedString("")
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(3))
+                .setOptionalGroup(UnittestProto.TestAllTypes.OptionalGroup.newBuilder().setA(4))
+                .build();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FORMAT.print(message, output, UTF_8);
+
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        FORMAT.merge(new ByteArrayInputStream(output.toByteArray()), UTF_8, builder);
+        assertThat(builder.build(), is(message));
+    }
+
+    public void testIndentedInput() throws Exception {
+        String xml = "<?xml version=\"1.0\"?>\n"
+                + "<TestAllTypes>\n"
+                + "  <!-- a comment -->\n"
+                + "  <optional_int32>7</optional_int32>\n"
+                + "  <optional_nested_message>\n"
+                + "    <bb>8</bb>\n"
+                + "  </optional_nested_message>\n"
+                + "  <not_a_field><bb>9</bb></not_a_field>\n"
+                + "  <repeated_string><![CDATA[<x>]]> and more</repeated_string>\n"
+                + "</TestAllTypes>\n";
+        UnittestProto.TestAllTypes expected = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalInt32(7)
+                .setOptionalNestedMessage(UnittestProto.TestAllTypes.NestedMessage.newBuilder().setBb(8))
+                .addRepeatedString("<x> and more")
+                .build();
+
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        FORMAT.merge(new ByteArrayInputStream(xml.getBytes(UTF_8)), UTF_8, builder);
+        assertThat(builder.build(), is(expected));
+
+        // The reader is left at the end of the message element.
+        builder = UnittestProto.TestAllTypes.newBuilder();
+        XMLStreamReader reader = XMLInputFactory.newFactory()
+                .createXMLStreamReader(new ByteArrayInputStream(xml.getBytes(UTF_8)));
+        FORMAT.merge(reader, ExtensionRegistry.getEmptyRegistry(), builder);
+        assertThat(builder.build(), is(expected));
+        assertThat(reader.getLocalName(), is("TestAllTypes"));
+        assertThat(reader.isEndElement(), is(true));
+    }
+
+    public void testCharsets() throws Exception {
+        UnittestProto.TestAllTypes message = UnittestProto.TestAllTypes.newBuilder()
+                .setOptionalString("grüße €")
+                .build();
+        for (String name : new String[] {"UTF-8", "ISO-8859-1", "US-ASCII", "UTF-16"}) {
+            Charset cs = Charset.forName(name);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            FORMAT.print(message, output, cs);
+            String text = new String(output.toByteArray(), cs);
+            assertThat(name, text, containsString("encoding=\"" + name + "\""));
+
+            UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+            FORMAT.merge(new ByteArrayInputStream(output.toByteArray()), cs, builder);
+            assertThat(name, builder.build(), is(message));
+        }
+    }
+
+    public void testFactories() throws Exception {
+        XMLInputFactory inputFactory = XmlJavaxFormat.configureInputFactory(XMLInputFactory.newFactory());
+        XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+        XmlJavaxFormat format = new XmlJavaxFormat(inputFactory, outputFactory);
+        assertThat(format.getXmlInputFactory(), sameInstance(inputFactory));
+        assertThat(format.getXmlOutputFactory(), sameInstance(outputFactory));
+
+        // Formats created without factories do not share them.
+        XmlJavaxFormat first = new XmlJavaxFormat();
+        XmlJavaxFormat second = new XmlJavaxFormat();
+        assertThat(first.getXmlInputFactory() == second.getXmlInputFactory(), is(false));
+        assertThat(first.getXmlOutputFactory() == second.getXmlOutputFactory(), is(false));
+        final XMLInputFactory created = XmlJavaxFormat.configureInputFactory(XMLInputFactory.newFactory());
+        XmlJavaxFormat subclass = new XmlJavaxFormat() {
+            @Override
+            protected XMLInputFactory createInputFactory() {
+                return created;
+            }
+        };
+        assertThat(subclass.getXmlInputFactory(), sameInstance(created));
+
+        UnittestProto.TestAllTypes message = UnittestProto.TestAllTypes.newBuilder().setOptionalInt32(1).build();
+        UnittestProto.TestAllTypes.Builder builder = UnittestProto.TestAllTypes.newBuilder();
+        format.merge(new ByteArrayInputStream(format.printToBytes(message)), builder);
+        assertThat(builder.build(), is(message));
+    }
+}
@@ -0,0 +1,77 @@
+package com.googlecode.protobuf.format.util;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * {@link ByteBufferReadable} must decode to the same text as an {@link InputStreamReader}, however
+ * small the chunks it is asked for.
+ */
+@Test
+public class ByteBufferReadableTest {
+
+    private static final Charset[] CHARSETS = {
+            Charset.forName("UTF-8"), Charset.forName("US-ASCII"),
+            Charset.forName("ISO-8859-1"), Charset.forName("UTF-16BE")};
+
+    public void testMatchesInputStreamReader() throws Exception {
+        Random random = new Random(42);
+        String alphabet = "aZ\"\né߿ࠀ€😀";
+        for (int round = 0; round < 200; round++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(5000);
+            for (int i = 0; i < length; i++) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            for (Charset cs : CHARSETS) {
+                byte[] bytes = text.toString().getBytes(cs);
+                if (round % 3 == 0 && bytes.length > 0) {
+                    // Some malformed input, which both replace.
+                    bytes[random.nextInt(bytes.length)] = (byte) (0x80 + random.nextInt(0x80));
+                }
+                assertThat(cs + " round " + round, read(bytes, cs, 1 + random.nextInt(64)), is(expected(bytes, cs)));
+            }
+        }
+    }
+
+    public void testDirectBuffer() throws Exception {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[] bytes = "{\"name\": \"grüße €\"}".getBytes(utf8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        StringBuilder text = new StringBuilder();
+        ByteBufferReadable readable = new ByteBufferReadable(direct, utf8);
+        CharBuffer chunk = CharBuffer.allocate(4);
+        while (readable.read(chunk) != -1) {
+            chunk.flip();
+            text.append(chunk);
+            chunk.clear();
+        }
+        assertThat(text.toString(), is(new String(bytes, utf8)));
+        assertThat(direct.position(), is(0));
+    }
+
+    private static String read(byte[] bytes, Charset cs, int chunkSize) throws Exception {
+        ByteBufferReadable readable = new ByteBufferReadable(ByteBuffer.wrap(bytes), cs);
+        StringBuilder text = new StringBuilder();
+        char[] chunk = new char[chunkSize];
+        int n;
+        while ((n = readable.read(CharBuffer.wrap(chunk))) != -1) {
+            text.append(chunk, 0, n);
+        }
+        return text.toString();
+    }
+
+    private static String expected(byte[] bytes, Charset cs) throws Exception {
+        return TextUtils.toStringBuilder(new InputStreamReader(new ByteArrayInputStream(bytes), cs)).toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.googlecode.protobuf.format.util;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * {@link Utf8Writer} must produce the same bytes as an {@link OutputStreamWriter}.
+ */
+@Test
+public class Utf8WriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    public void testMatchesOutputStreamWriter() throws Exception {
+        Random random = new Random(42);
+        char[] alphabet = {'a', 'Z', '"', '\n', 'é', '߿', 'ࠀ', '€', '￿',
+                '\ud83d', '\ude00', '\udbff', '\udfff'};
+        for (int round = 0; round < 200; round++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(20000);
+            for (int i = 0; i < length; i++) {
+                text.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            // Keep the end well-formed, a trailing high surrogate is only resolved on close().
+            text.append('.');
+            for (Charset cs : new Charset[]{UTF_8, US_ASCII}) {
+                assertThat(cs + " round " + round, encode(text, cs), is(expected(text, cs)));
+            }
+        }
+    }
+
+    public void testAppendRange() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = new Utf8Writer(out);
+        writer.append("xx€yy", 2, 4).append('!');
+        writer.flush();
+        assertThat(out.toString("UTF-8"), is("€y!"));
+    }
+
+    private static byte[] encode(CharSequence text, Charset cs) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = Utf8Writer.create(out, cs);
+        // Split the text across calls so surrogate pairs straddle them.
+        int mid = text.length() / 3;
+        writer.append(text, 0, mid);
+        writer.write(text.toString().toCharArray(), mid, text.length() - mid);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] expected(CharSequence text, Charset cs) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStreamWriter writer = new OutputStreamWriter(out, cs);
+        writer.append(text);
+        writer.flush();
+        return out.toByteArray();
+    }
+}